@@ -0,0 +1,43 @@
+import java.util.Random;
+
+// Measures the cost of send (op 3) and read (op 5) as the number of accounts grows.
+// Run: java AccountDirectoryBench
+public class AccountDirectoryBench {
+    private static final int OPS = 200_000;
+
+    public static void main(String[] args) {
+        int[] sizes = {1_000, 10_000, 100_000};
+        for (int n : sizes) {
+            MessageStore store = new MessageStore();
+            for (int i = 0; i < n; i++) {
+                store.register(new Account("user" + i), 10_000 + i);
+            }
+            ClientHandler handler = new ClientHandler(store);
+            String[] sends = new String[1024];
+            String[] reads = new String[1024];
+            Random rand = new Random(42);
+            for (int i = 0; i < sends.length; i++) {
+                int from = rand.nextInt(n);
+                int to = rand.nextInt(n);
+                sends[i] = "localhost 5000 3 " + (10_000 + from) + " user" + to + " hello there";
+                reads[i] = "localhost 5000 5 " + (10_000 + to) + " 1";
+            }
+
+            run(handler, sends, OPS / 4);
+            long sendNs = run(handler, sends, OPS);
+            run(handler, reads, OPS / 4);
+            long readNs = run(handler, reads, OPS);
+            System.out.println("accounts=" + n
+                    + " send=" + sendNs / OPS + "ns/op"
+                    + " read=" + readNs / OPS + "ns/op");
+        }
+    }
+
+    private static long run(ClientHandler handler, String[] lines, int ops) {
+        long start = System.nanoTime();
+        for (int i = 0; i < ops; i++) {
+            handler.handle(lines[i & (lines.length - 1)]);
+        }
+        return System.nanoTime() - start;
+    }
+}
@@ -0,0 +1,92 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Heap per stored message: the columnar mailboxes of MessageStore against the
+// earlier layout of one Message object per message, each naming its sender and
+// receiver by String, in a LinkedHashMap per mailbox plus a reference per
+// message in the conversation index. Every message shares one body String, so
+// the numbers hold only what storing a message costs on top of its text.
+//
+// Run: java MessageFootprintBench [accounts] [messages per account]
+public class MessageFootprintBench {
+    private static final String BODY = "message body";
+    // keeps the layout being measured reachable while the heap is measured
+    private static Object kept;
+
+    public static void main(String[] args) throws InterruptedException {
+        int accountCount = args.length > 0 ? Integer.parseInt(args[0]) : 10_000;
+        int perAccount = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+        long messages = (long) accountCount * perAccount;
+        System.out.printf("%d accounts, %d messages each%n", accountCount, perAccount);
+
+        MessageStore store = new MessageStore();
+        for (int i = 0; i < accountCount; i++) {
+            store.register(new Account("user" + i), 10_000 + i);
+        }
+        AccountDirectory accounts = store.getAccounts();
+        kept = store;
+        long before = usedHeap();
+        for (int i = 0; i < perAccount; i++) {
+            for (int a = 0; a < accountCount; a++) {
+                store.send(accounts.get((a + 1 + i % 10) % accountCount), accounts.get(a), BODY);
+            }
+        }
+        long columnar = usedHeap() - before;
+        System.out.printf("%-28s %8.1f B/message%n", "columnar mailboxes", (double) columnar / messages);
+        kept = null;
+        store = null;
+        accounts = null;
+
+        String[] names = new String[accountCount];
+        List<Map<Integer, ObjectMessage>> mailboxes = new ArrayList<>(accountCount);
+        for (int i = 0; i < accountCount; i++) {
+            names[i] = "user" + i;
+            mailboxes.add(new LinkedHashMap<>());
+        }
+        Map<String, List<ObjectMessage>> conversations = new HashMap<>();
+        kept = new Object[]{mailboxes, conversations};
+        before = usedHeap();
+        int id = 0;
+        for (int i = 0; i < perAccount; i++) {
+            for (int a = 0; a < accountCount; a++) {
+                int from = (a + 1 + i % 10) % accountCount;
+                ObjectMessage m = new ObjectMessage(names[from], names[a], BODY, ++id);
+                mailboxes.get(a).put(m.messageID, m);
+                String pair = from < a ? names[from] + ' ' + names[a] : names[a] + ' ' + names[from];
+                conversations.computeIfAbsent(pair, k -> new ArrayList<>()).add(m);
+            }
+        }
+        long objects = usedHeap() - before;
+        System.out.printf("%-28s %8.1f B/message%n", "object per message", (double) objects / messages);
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        Runtime rt = Runtime.getRuntime();
+        for (int i = 0; i < 4; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        return rt.totalMemory() - rt.freeMemory();
+    }
+
+    // the fields Message had while mailboxes held Message objects
+    private static class ObjectMessage {
+        volatile boolean isRead;
+        String sender;
+        String receiver;
+        final int messageID;
+        String body;
+        BodyStore bodyStore;
+        long bodyHandle;
+
+        ObjectMessage(String sender, String receiver, String body, int messageID) {
+            this.sender = sender;
+            this.receiver = receiver;
+            this.body = body;
+            this.messageID = messageID;
+        }
+    }
+}
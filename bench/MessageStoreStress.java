@@ -0,0 +1,88 @@
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Hammers MessageStore from many threads, then checks that every message
+// arrived exactly once and that no message ID was handed out twice.
+// Run: java MessageStoreStress [threads] [sendsPerThread] [accounts]
+public class MessageStoreStress {
+
+    public static void main(String[] args) throws InterruptedException {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 32;
+        int sendsPerThread = args.length > 1 ? Integer.parseInt(args[1]) : 50_000;
+        int accountCount = args.length > 2 ? Integer.parseInt(args[2]) : 64;
+
+        MessageStore store = new MessageStore();
+        for (int i = 0; i < accountCount; i++) {
+            store.register(new Account("user" + i), 10_000 + i);
+        }
+
+        AtomicInteger deleted = new AtomicInteger();
+        AtomicInteger failures = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            long seed = t;
+            workers[t] = new Thread(() -> {
+                Random rand = new Random(seed);
+                AccountDirectory accounts = store.getAccounts();
+                try {
+                    start.await();
+                    for (int i = 0; i < sendsPerThread; i++) {
+                        Account sender = accounts.get(rand.nextInt(accountCount));
+                        Account receiver = accounts.get(rand.nextInt(accountCount));
+                        Message m = store.send(sender, receiver, "stress " + i);
+                        // every tenth message is read back and deleted while others keep sending
+                        if (i % 10 == 0) {
+                            if (store.read(receiver, m.getMessageID()) == null) {
+                                failures.incrementAndGet();
+                            }
+                            if (store.delete(receiver, m.getMessageID())) {
+                                deleted.incrementAndGet();
+                            } else {
+                                failures.incrementAndGet();
+                            }
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            workers[t].start();
+        }
+
+        long begin = System.nanoTime();
+        start.countDown();
+        for (Thread w : workers) {
+            w.join();
+        }
+        long elapsedMs = (System.nanoTime() - begin) / 1_000_000;
+
+        int sent = threads * sendsPerThread;
+        BitSet seen = new BitSet(sent + 1);
+        int stored = 0;
+        int duplicates = 0;
+        for (int i = 0; i < accountCount; i++) {
+            List<Message> mailbox = store.mailbox(store.getAccounts().get(i));
+            for (Message m : mailbox) {
+                if (seen.get(m.getMessageID())) {
+                    duplicates++;
+                }
+                seen.set(m.getMessageID());
+                stored++;
+            }
+        }
+
+        int lost = sent - deleted.get() - stored;
+        System.out.println("threads=" + threads + " sent=" + sent + " deleted=" + deleted.get()
+                + " stored=" + stored + " duplicates=" + duplicates + " lost=" + lost
+                + " failures=" + failures.get() + " time=" + elapsedMs + "ms");
+        if (duplicates != 0 || lost != 0 || failures.get() != 0) {
+            System.out.println("FAILED");
+            System.exit(1);
+        }
+        System.out.println("PASSED");
+    }
+}
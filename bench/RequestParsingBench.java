@@ -0,0 +1,98 @@
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+
+// Measures time and heap allocation per request for the request parser and for
+// whole requests through ClientHandler. The "split" rows reproduce the parsing
+// the server did before Request (String.split, body concatenation, parseInt and
+// a regex per username) for comparison.
+// Run: java RequestParsingBench
+public class RequestParsingBench {
+    private static final int OPS = 1_000_000;
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private static long sink;
+
+    public static void main(String[] args) throws IOException {
+        String sendLine = "localhost 5000 3 1234 bob hello there, this is a message of a few words";
+        char[] sendChars = sendLine.toCharArray();
+        Request request = new Request();
+
+        measure("split parse (op 3)", () -> {
+            String[] s1 = sendLine.split(" ");
+            String s = "";
+            for (int i = 5; i < s1.length; i++) {
+                s = s + s1[i] + " ";
+            }
+            sink += s.trim().length() + Integer.parseInt(s1[3]) + (s1[4].matches("[a-zA-Z_0-9]+") ? 1 : 0);
+        });
+        measure("Request parse (op 3)", () -> {
+            request.parseText(sendChars, sendChars.length);
+            sink += request.intArg(0) + (request.isWord(1) ? 1 : 0);
+        });
+        measure("Request parse + body (op 3)", () -> {
+            request.parseText(sendChars, sendChars.length);
+            sink += request.intArg(0) + request.rest(2).length();
+        });
+
+        MessageStore store = new MessageStore();
+        store.register(new Account("alice"), 1234);
+        store.register(new Account("bob"), 5678);
+        ClientHandler handler = new ClientHandler(store);
+        handler.handle("localhost 5000 3 5678 bob hi");
+        Reply reply = new Reply.TextReply(new NullWriter());
+
+        request("op 5 read", handler, reply, "localhost 5000 5 5678 1");
+        request("op 6 missing message", handler, reply, "localhost 5000 6 5678 99");
+        request("op 2 bad token", handler, reply, "localhost 5000 2 1");
+        request("op 1 existing user", handler, reply, "localhost 5000 1 alice");
+        System.out.println("(sink " + sink + ")");
+    }
+
+    private static void request(String name, ClientHandler handler, Reply reply, String line) {
+        char[] chars = line.toCharArray();
+        Request request = new Request();
+        measure(name, () -> {
+            request.parseText(chars, chars.length);
+            handler.handle(request, reply);
+        });
+    }
+
+    private interface Op {
+        void run() throws IOException;
+    }
+
+    private static void measure(String name, Op op) {
+        try {
+            for (int i = 0; i < OPS / 10; i++) {
+                op.run();
+            }
+            long id = Thread.currentThread().getId();
+            long bytesBefore = THREADS.getThreadAllocatedBytes(id);
+            long start = System.nanoTime();
+            for (int i = 0; i < OPS; i++) {
+                op.run();
+            }
+            long ns = System.nanoTime() - start;
+            long bytes = THREADS.getThreadAllocatedBytes(id) - bytesBefore;
+            System.out.printf("%-30s %8.1f ns/op %8.1f B/op%n", name, (double) ns / OPS, (double) bytes / OPS);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static class NullWriter extends Writer {
+        public void write(char[] cbuf, int off, int len) {
+        }
+
+        public void write(String str) {
+        }
+
+        public void flush() {
+        }
+
+        public void close() {
+        }
+    }
+}
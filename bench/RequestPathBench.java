@@ -0,0 +1,201 @@
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+
+// Baseline for the server request path: whole requests through
+// ClientHandler.handle, against directories of 1k, 100k and 1M accounts and a
+// mailbox of 10, 1k and 100k messages. For every operation it reports
+// throughput, average time and heap allocated per request.
+//
+// Requests are written into one reused char array, so the numbers hold only
+// what the server itself allocates. "delete" sends one new message for every
+// one it deletes, to keep the mailbox at its size, and that send is counted too.
+// "register" stops after REGISTER_OPS requests, so the directory stays close to
+// the size being measured.
+//
+// Run: java -Xmx4g RequestPathBench [accounts,...] [mailbox sizes,...] [seconds per op]
+// e.g. java -Xmx4g RequestPathBench 1000,100000 10,100000 1
+public class RequestPathBench {
+    private static final int TOKEN_BASE = 10_000;
+    private static final int PAGE = 100;
+    private static final int REGISTER_OPS = 5_000;
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private static final char[] line = new char[256];
+    private static final Request request = new Request();
+    private static final Reply reply = new Reply.TextReply(new NullWriter());
+    private static double seconds = 1;
+
+    public static void main(String[] args) throws IOException {
+        int[] accountSizes = args.length > 0 ? ints(args[0]) : new int[]{1_000, 100_000, 1_000_000};
+        int[] mailboxSizes = args.length > 1 ? ints(args[1]) : new int[]{10, 1_000, 100_000};
+        if (args.length > 2) {
+            seconds = Double.parseDouble(args[2]);
+        }
+        System.out.printf("%-9s %-8s %-26s %14s %12s %10s%n", "accounts", "mailbox", "operation", "ops/s", "ns/op", "B/op");
+        for (int accounts : accountSizes) {
+            for (int mailbox : mailboxSizes) {
+                run(accounts, mailbox);
+            }
+        }
+    }
+
+    private static void run(int accountCount, int mailboxSize) throws IOException {
+        MessageStore store = new MessageStore();
+        // search on, as with --search-index=256
+        store.setSearchIndexBudget(256 * 1024);
+        for (int i = 0; i < accountCount; i++) {
+            store.register(new Account("user" + i), TOKEN_BASE + i);
+        }
+        AccountDirectory accounts = store.getAccounts();
+        // user0 owns the mailbox, user1 receives the sends
+        Account owner = accounts.get(0);
+        for (int i = 0; i < mailboxSize; i++) {
+            store.send(accounts.get(2 + i % Math.min(10, accountCount - 2)), owner, "message body number " + i);
+        }
+        int ownerToken = TOKEN_BASE;
+        ClientHandler handler = new ClientHandler(store);
+        String label = String.format("%-9d %-8d", accountCount, mailboxSize);
+        Random random = new Random();
+
+        int[] registered = {0};
+        measure(label, "register (op 1)", handler, REGISTER_OPS, () -> {
+            int n = put(0, "h p 1 fresh");
+            return put(n, registered[0]++);
+        });
+        measure(label, "list users page (op 2)", handler, Long.MAX_VALUE, () -> {
+            int n = put(0, "h p 2 ");
+            n = put(n, ownerToken);
+            line[n++] = ' ';
+            n = put(n, random.next(Math.max(1, accountCount - PAGE)));
+            return put(n, " 100");
+        });
+        measure(label, "send (op 3)", handler, 2_000_000, () -> {
+            int n = put(0, "h p 3 ");
+            n = put(n, TOKEN_BASE + 2 + random.next(accountCount - 2));
+            return put(n, " user1 hello there, this is a message of a few words");
+        });
+        measure(label, "list mailbox page (op 4)", handler, Long.MAX_VALUE, () -> {
+            int n = put(0, "h p 4 ");
+            n = put(n, ownerToken);
+            line[n++] = ' ';
+            n = put(n, random.next(Math.max(1, mailboxSize - PAGE)));
+            return put(n, " 100");
+        });
+        measure(label, "read (op 5)", handler, Long.MAX_VALUE, () -> {
+            int n = put(0, "h p 5 ");
+            n = put(n, ownerToken);
+            line[n++] = ' ';
+            return put(n, 1 + random.next(mailboxSize));
+        });
+        // user2 sent every tenth message of the mailbox
+        measure(label, "conversation page (op 14)", handler, Long.MAX_VALUE, () -> {
+            int n = put(0, "h p 14 ");
+            n = put(n, ownerToken);
+            return put(n, " user2 0 0 100");
+        });
+        measure(label, "search page (op 15)", handler, Long.MAX_VALUE, () -> {
+            int n = put(0, "h p 15 ");
+            n = put(n, ownerToken);
+            return put(n, " 0 100 message from:user2");
+        });
+        // deletes the oldest message and sends a new one, so IDs move up by one each time
+        Account sender = accounts.get(1);
+        int[] oldest = {1};
+        measure(label, "delete + refill (op 6)", handler, Long.MAX_VALUE, () -> {
+            store.send(sender, owner, "message body");
+            int n = put(0, "h p 6 ");
+            n = put(n, ownerToken);
+            line[n++] = ' ';
+            return put(n, oldest[0]++);
+        });
+    }
+
+    // Writes the request into line; returns its length
+    private interface RequestWriter {
+        int write();
+    }
+
+    private static void measure(String label, String name, ClientHandler handler, long maxOps,
+                                RequestWriter writer) throws IOException {
+        long warmup = Math.min(maxOps / 5, 50_000);
+        for (long i = 0; i < warmup; i++) {
+            handle(handler, writer);
+        }
+        long limit = maxOps - warmup;
+        long id = Thread.currentThread().getId();
+        long bytesBefore = THREADS.getThreadAllocatedBytes(id);
+        long start = System.nanoTime();
+        long deadline = start + (long) (seconds * 1e9);
+        long ops = 0;
+        long now;
+        do {
+            for (int i = 0; i < 1000 && ops < limit; i++, ops++) {
+                handle(handler, writer);
+            }
+            now = System.nanoTime();
+        } while (now < deadline && ops < limit);
+        long bytes = THREADS.getThreadAllocatedBytes(id) - bytesBefore;
+        long ns = now - start;
+        System.out.printf("%s %-26s %14.0f %12.1f %10.1f%n", label, name,
+                ops * 1e9 / ns, (double) ns / ops, (double) bytes / ops);
+    }
+
+    private static void handle(ClientHandler handler, RequestWriter writer) throws IOException {
+        request.parseText(line, writer.write());
+        handler.handle(request, reply);
+    }
+
+    private static int put(int at, String s) {
+        s.getChars(0, s.length(), line, at);
+        return at + s.length();
+    }
+
+    private static int put(int at, long value) {
+        int digits = 1;
+        for (long v = value; v >= 10; v /= 10) {
+            digits++;
+        }
+        for (int i = at + digits - 1; i >= at; i--) {
+            line[i] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+        return at + digits;
+    }
+
+    private static int[] ints(String list) {
+        String[] parts = list.split(",");
+        int[] values = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            values[i] = Integer.parseInt(parts[i].trim());
+        }
+        return values;
+    }
+
+    // xorshift, so picking a random ID does not allocate or contend
+    private static class Random {
+        private long state = 0x9E3779B97F4A7C15L;
+
+        int next(int bound) {
+            state ^= state << 13;
+            state ^= state >>> 7;
+            state ^= state << 17;
+            return (int) ((state >>> 1) % bound);
+        }
+    }
+
+    private static class NullWriter extends Writer {
+        public void write(char[] cbuf, int off, int len) {
+        }
+
+        public void write(String str) {
+        }
+
+        public void flush() {
+        }
+
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,70 @@
+import java.io.File;
+import java.nio.file.Files;
+
+// Startup time of a server with a write-ahead log: replaying the whole log
+// against loading a snapshot of the same state, with one decoding thread and
+// with one per core. Files go to a fresh directory under java.io.tmpdir.
+//
+// Run: java RestartBench [accounts] [messages per account]
+public class RestartBench {
+    public static void main(String[] args) throws Exception {
+        int accountCount = args.length > 0 ? Integer.parseInt(args[0]) : 10_000;
+        int perAccount = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+        int cores = Runtime.getRuntime().availableProcessors();
+        File dir = new File(System.getProperty("java.io.tmpdir"), "restart-bench-" + System.nanoTime());
+        if (!dir.mkdirs()) {
+            throw new IllegalStateException("Cannot create " + dir);
+        }
+        File wal = new File(dir, "messages.wal");
+        File snapshot = new File(dir, "messages.wal.snapshot");
+        System.out.printf("%d accounts, %d messages each, %d cores%n", accountCount, perAccount, cores);
+
+        MessageStore store = new MessageStore();
+        WriteAheadLog log = new WriteAheadLog(wal, 0, WriteAheadLog.SyncPolicy.PERIODIC, 1000);
+        store.setLog(log);
+        for (int i = 0; i < accountCount; i++) {
+            store.register(new Account("user" + i));
+        }
+        AccountDirectory accounts = store.getAccounts();
+        for (int i = 0; i < perAccount; i++) {
+            for (int a = 0; a < accountCount; a++) {
+                store.send(accounts.get((a + 1 + i % 10) % accountCount), accounts.get(a), "message " + i + " to user" + a);
+            }
+        }
+
+        // the whole history is in segment 0; keep it aside for the replay run
+        File fullLog = new File(dir, "full.wal");
+        Files.copy(wal.toPath(), fullLog.toPath());
+        long start = System.nanoTime();
+        Snapshot.take(store, log, snapshot);
+        System.out.printf("%-28s %8d ms, %d MB%n", "take snapshot",
+                (System.nanoTime() - start) / 1_000_000, snapshot.length() >> 20);
+        store = null;
+        accounts = null;
+
+        for (int run = 0; run < 3; run++) {
+            start = System.nanoTime();
+            WriteAheadLog.replay(fullLog, 0, new MessageStore());
+            report(run, "replay whole log", start);
+
+            start = System.nanoTime();
+            Snapshot.load(snapshot, new MessageStore(), 1);
+            report(run, "load snapshot, 1 thread", start);
+
+            start = System.nanoTime();
+            Snapshot.load(snapshot, new MessageStore(), cores);
+            report(run, "load snapshot, " + cores + " threads", start);
+        }
+
+        for (File f : dir.listFiles()) {
+            f.delete();
+        }
+        dir.delete();
+    }
+
+    // the first run warms up the JIT and is only printed for reference
+    private static void report(int run, String name, long start) {
+        System.out.printf("%-28s %8d ms%s%n", name, (System.nanoTime() - start) / 1_000_000,
+                run == 0 ? " (warmup)" : "");
+    }
+}
@@ -0,0 +1,116 @@
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Sends, deletes and searches from many threads at once with small search
+// indexes that keep shrinking, then checks that every search result matched
+// its query and that each account's newest message can still be found.
+// Run: java SearchIndexStress [threads] [sendsPerThread] [accounts] [indexKB]
+public class SearchIndexStress {
+
+    public static void main(String[] args) throws InterruptedException {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+        int sendsPerThread = args.length > 1 ? Integer.parseInt(args[1]) : 20_000;
+        int accountCount = args.length > 2 ? Integer.parseInt(args[2]) : 16;
+        int indexKb = args.length > 3 ? Integer.parseInt(args[3]) : 16;
+
+        MessageStore store = new MessageStore();
+        store.setSearchIndexBudget(indexKb * 1024L);
+        for (int i = 0; i < accountCount; i++) {
+            store.register(new Account("user" + i), 10_000 + i);
+        }
+        checkOversizedBody(store, indexKb);
+
+        AtomicInteger searches = new AtomicInteger();
+        AtomicInteger failures = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            int thread = t;
+            workers[t] = new Thread(() -> {
+                Random rand = new Random(thread);
+                AccountDirectory accounts = store.getAccounts();
+                try {
+                    start.await();
+                    for (int i = 0; i < sendsPerThread; i++) {
+                        Account sender = accounts.get(rand.nextInt(accountCount));
+                        Account receiver = accounts.get(rand.nextInt(accountCount));
+                        String word = "w" + rand.nextInt(50);
+                        Message m = store.send(sender, receiver, "t" + thread + "x" + i + " " + word + " stress");
+                        // every tenth message is deleted, so purges run alongside the shrinking
+                        if (i % 10 == 0) {
+                            store.delete(receiver, m.getMessageID());
+                        }
+                        if (i % 4 == 0) {
+                            searches.incrementAndGet();
+                            for (Message found : store.search(receiver, word, Integer.MAX_VALUE, 20)) {
+                                if (found == null || !found.getBody().contains(" " + word + " ")) {
+                                    failures.incrementAndGet();
+                                }
+                            }
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                    failures.incrementAndGet();
+                }
+            });
+            workers[t].start();
+        }
+
+        long begin = System.nanoTime();
+        start.countDown();
+        for (Thread w : workers) {
+            w.join();
+        }
+        long elapsedMs = (System.nanoTime() - begin) / 1_000_000;
+
+        // shrinking drops the older half, so the newest message of a mailbox stays found
+        int missing = 0;
+        for (int i = 0; i < accountCount; i++) {
+            Account account = store.getAccounts().get(i);
+            List<Message> mailbox = store.mailbox(account);
+            if (mailbox.isEmpty()) {
+                continue;
+            }
+            Message newest = mailbox.get(mailbox.size() - 1);
+            String tag = newest.getBody().substring(0, newest.getBody().indexOf(' '));
+            List<Message> found = store.search(account, tag, Integer.MAX_VALUE, 10);
+            if (found.size() != 1 || found.get(0).getMessageID() != newest.getMessageID()) {
+                missing++;
+            }
+        }
+
+        System.out.println("threads=" + threads + " sent=" + threads * sendsPerThread
+                + " searches=" + searches.get() + " failures=" + failures.get()
+                + " missing=" + missing + " time=" + elapsedMs + "ms");
+        if (failures.get() != 0 || missing != 0) {
+            System.out.println("FAILED");
+            System.exit(1);
+        }
+        System.out.println("PASSED");
+    }
+
+    // One message with more distinct words than fit the search index budget
+    // has to be delivered, and search has to find the messages after it
+    private static void checkOversizedBody(MessageStore store, int indexKb) {
+        Account sender = store.getAccounts().get(0);
+        Account receiver = store.getAccounts().get(1);
+        StringBuilder body = new StringBuilder();
+        for (int i = 0; i < indexKb * 200; i++) {
+            body.append("word").append(i).append(' ');
+        }
+        Message big = store.send(sender, receiver, body.toString());
+        Message after = store.send(sender, receiver, "oversized check");
+        List<Message> found = store.search(receiver, "oversized", Integer.MAX_VALUE, 10);
+        if (found.size() != 1 || found.get(0).getMessageID() != after.getMessageID()) {
+            System.out.println("FAILED: search after an oversized body found " + found.size() + " messages");
+            System.exit(1);
+        }
+        store.delete(receiver, big.getMessageID());
+        store.delete(receiver, after.getMessageID());
+    }
+}
@@ -1,15 +1,27 @@
 import java.awt.event.ActionEvent;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
 
 public class Account {
     private String username;
-    private int authToken;
-    private List<Message> messageBox=new ArrayList<>();
-    public Account(String username,int token){
+    // index in the AccountDirectory, set when registered; messages name their sender by it
+    int id=-1;
+    AccountDirectory directory;
+    // open sessions; changed by AccountDirectory under its lock
+    int sessions;
+    // guarded by this account's lock
+    private final Mailbox mailbox=new Mailbox();
+    // unread messages in the mailbox, in total and by sender account ID (senders with none
+    // are left out); kept up to date by addMessage, markRead and deleteMessage
+    private int unread;
+    private final Map<Integer, Integer> unreadBySender=new HashMap<>();
+    // made with the first message indexed, if the store indexes them
+    private SearchIndex index;
+    public Account(String username){
         this.username=username;
-        this.authToken=token;
 
 
     }
@@ -17,21 +29,149 @@ public class Account {
         this.username=username;
 
     }
-    public void setAuthToken(int authToken){this.authToken=authToken;}
     public String getUsername(){
         return username;
     }
-    public int getSizeOfMassages(){return messageBox.size();}
-    public void deleteMessage(int x){
-        messageBox.remove(x);
+    public int getId(){
+        return id;
     }
-    public int getAuthToken(){
-        return authToken;
+    public synchronized int getSizeOfMassages(){return mailbox.size();}
+    public synchronized boolean deleteMessage(int messageId){
+        int slot = mailbox.slot(messageId);
+        if (slot < 0) {
+            return false;
+        }
+        if (!mailbox.isRead(slot)) {
+            countRead(mailbox.sender(slot));
+        }
+        mailbox.delete(slot);
+        if (index != null && index.deleted(messageId)) {
+            index.purge(mailbox);
+        }
+        return true;
     }
-    public Message getMessage(int a){
-        return messageBox.get(a);
+    // marks a message of this mailbox read; returns false if it is not here or already was
+    public synchronized boolean markRead(int messageId){
+        int slot = mailbox.slot(messageId);
+        if (slot < 0 || mailbox.isRead(slot)) {
+            return false;
+        }
+        mailbox.setRead(slot);
+        countRead(mailbox.sender(slot));
+        return true;
     }
-    public void addMessage(Message a){
-        messageBox.add(a);
+    private void countRead(int sender){
+        unread--;
+        unreadBySender.compute(sender, (s, n) -> n == 1 ? null : n - 1);
+    }
+    public synchronized int getUnreadCount(){
+        return unread;
+    }
+    // copy of the unread counts by sender
+    public synchronized Map<String, Integer> getUnreadBySender(){
+        Map<String, Integer> bySender = new HashMap<>();
+        for (Map.Entry<Integer, Integer> e : unreadBySender.entrySet()) {
+            bySender.put(directory.get(e.getKey()).getUsername(), e.getValue());
+        }
+        return bySender;
+    }
+    // sender account ID of a message in this mailbox, or -1
+    public synchronized int getSenderId(int messageId){
+        int slot = mailbox.slot(messageId);
+        return slot < 0 ? -1 : mailbox.sender(slot);
+    }
+    public synchronized Message getMessage(int messageId){
+        int slot = mailbox.slot(messageId);
+        return slot < 0 ? null : message(slot);
+    }
+    // copy of the mailbox, safe to walk while other threads deliver
+    public synchronized List<Message> getMessages(){
+        return getMessages(0, Integer.MAX_VALUE);
+    }
+    // copy of up to limit messages, starting at the offset-th in arrival order
+    public synchronized List<Message> getMessages(int offset, int limit){
+        List<Message> page = new ArrayList<>(Math.min(limit, Math.max(0, mailbox.size() - offset)));
+        for (int slot = mailbox.nth(offset); slot >= 0 && page.size() < limit; slot = mailbox.next(slot + 1)) {
+            page.add(message(slot));
+        }
+        return page;
+    }
+    // the messages with the given IDs, at the same index; null where one is not here
+    public synchronized Message[] getMessages(int[] messageIds){
+        Message[] found = new Message[messageIds.length];
+        for (int i = 0; i < messageIds.length; i++) {
+            int slot = mailbox.slot(messageIds[i]);
+            if (slot >= 0) {
+                found[i] = message(slot);
+            }
+        }
+        return found;
+    }
+    // copy of up to limit messages with IDs in [fromId, toId], in arrival order
+    public synchronized List<Message> getMessagesBetween(int fromId, int toId, int limit){
+        List<Message> found = new ArrayList<>();
+        for (int slot = mailbox.firstFrom(fromId); slot >= 0 && mailbox.id(slot) <= toId && found.size() < limit;
+                slot = mailbox.next(slot + 1)) {
+            found.add(message(slot));
+        }
+        return found;
+    }
+    // stores a message sent by sender; only its ID and body are kept, not the object
+    public synchronized void addMessage(Message a, Account sender){
+        if (a.getBodyStore() != null) {
+            mailbox.add(a.getMessageID(), sender.id, a.getBodyStore(), a.getBodyHandle(), a.getCompressor());
+        } else if (a.getCompressedBody() != null) {
+            mailbox.add(a.getMessageID(), sender.id, a.getCompressedBody(), a.getCompressor());
+        } else {
+            mailbox.add(a.getMessageID(), sender.id, a.getBody());
+        }
+        if (!a.getIsRead()) {
+            unread++;
+            unreadBySender.merge(sender.id, 1, Integer::sum);
+        } else {
+            mailbox.setRead(mailbox.slot(a.getMessageID()));
+        }
+    }
+    // adds a message of this mailbox to its search index, keeping the index within budget bytes
+    synchronized void index(int messageId, String sender, String body, long budget){
+        if (index == null) {
+            index = new SearchIndex();
+        }
+        index.add(messageId, sender, body);
+        if (index.bytes() > budget) {
+            // room to grow again before the next shrink
+            index.shrink(mailbox, budget * 3 / 4);
+        }
+    }
+    // IDs of up to limit indexed messages below beforeId with every search term, newest first
+    public synchronized int[] search(List<String> terms, int beforeId, int limit){
+        return index == null ? new int[0] : index.search(terms, beforeId, limit, mailbox);
+    }
+    public synchronized long getSearchIndexBytes(){
+        return index == null ? 0 : index.bytes();
+    }
+    // a copy of the mailbox for a snapshot, so that it is written out without the lock
+    synchronized Mailbox copyMailbox(){
+        return mailbox.copy();
+    }
+    // highest message ID this mailbox ever got, deleted or not
+    public synchronized int getLastMessageId(){
+        return mailbox.lastId();
+    }
+    synchronized void restoreLastMessageId(int messageId){
+        mailbox.restoreLastId(messageId);
+    }
+    // a Message for the slot, with the sender's name looked up now
+    private Message message(int slot){
+        String sender = directory.get(mailbox.sender(slot)).getUsername();
+        Object body = mailbox.heapBody(slot);
+        if (body instanceof String) {
+            return new Message(sender, username, (String) body, mailbox.isRead(slot), mailbox.id(slot));
+        }
+        if (body != null) {
+            return new Message(sender, username, (byte[]) body, mailbox.compressor(slot), mailbox.isRead(slot), mailbox.id(slot));
+        }
+        return new Message(sender, username, mailbox.bodyStore(), mailbox.handle(slot), mailbox.compressor(slot),
+                mailbox.isRead(slot), mailbox.id(slot));
     }
 }
@@ -0,0 +1,110 @@
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// All registered accounts, indexed by username and by session token. An
+// account's ID is its place in registration order, so get(id) finds it.
+// Lookups never block; registrations and session changes are serialized.
+public class AccountDirectory {
+    private final Map<String, Account> byUsername = new ConcurrentHashMap<>();
+    // an account has one entry per open session
+    private final Map<Long, Account> byToken = new ConcurrentHashMap<>();
+    private final SecureRandom random = new SecureRandom();
+    // registration order, only appended to
+    private volatile Account[] accounts = new Account[16];
+    private volatile int size;
+
+    // returns false if the username or the token is already taken
+    public synchronized boolean add(Account a, long token) {
+        if (byUsername.containsKey(a.getUsername()) || byToken.containsKey(token)) {
+            return false;
+        }
+        Account[] array = accounts;
+        if (size == array.length) {
+            array = Arrays.copyOf(array, array.length * 2);
+        }
+        array[size] = a;
+        a.id = size;
+        a.directory = this;
+        accounts = array;
+        size++;
+        byUsername.put(a.getUsername(), a);
+        openSession(a, token);
+        return true;
+    }
+
+    // A token no session uses yet. 62 random bits, so that it fits a number
+    // field of the binary protocol; call under this directory's lock so that
+    // nobody takes it before it is opened.
+    public synchronized long newToken() {
+        long token;
+        do {
+            token = random.nextLong() >>> 2;
+        } while (token == 0 || byToken.containsKey(token));
+        return token;
+    }
+
+    // returns false if the token is already taken
+    public synchronized boolean openSession(Account a, long token) {
+        if (byToken.putIfAbsent(token, a) != null) {
+            return false;
+        }
+        a.sessions++;
+        return true;
+    }
+
+    // Ends a session, unless it is the account's last one: there is no other
+    // way back into an account. Returns false if nothing was ended.
+    public synchronized boolean closeSession(long token) {
+        Account a = byToken.get(token);
+        if (a == null || a.sessions == 1) {
+            return false;
+        }
+        byToken.remove(token);
+        a.sessions--;
+        return true;
+    }
+
+    // The session tokens of every account, indexed by account ID, all as of one moment
+    public synchronized long[][] sessionTokens() {
+        long[][] tokens = new long[size][];
+        int[] filled = new int[size];
+        for (int i = 0; i < size; i++) {
+            tokens[i] = new long[accounts[i].sessions];
+        }
+        for (Map.Entry<Long, Account> e : byToken.entrySet()) {
+            int id = e.getValue().id;
+            tokens[id][filled[id]++] = e.getKey();
+        }
+        return tokens;
+    }
+
+    public Account getByUsername(String username) {
+        return byUsername.get(username);
+    }
+
+    public Account getByToken(long token) {
+        return byToken.get(token);
+    }
+
+    public boolean containsUsername(String username) {
+        return byUsername.containsKey(username);
+    }
+
+    public boolean containsToken(long token) {
+        return byToken.containsKey(token);
+    }
+
+    // Accounts in registration order
+    public Account get(int index) {
+        if (index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index);
+        }
+        return accounts[index];
+    }
+
+    public int size() {
+        return size;
+    }
+}
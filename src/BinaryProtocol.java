@@ -0,0 +1,200 @@
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Compact framing spoken by ClientConnection and Client, next to the text line protocol.
+//
+// A client opts in by sending MAGIC as its first bytes; the server answers with
+// the same bytes. After that every message is a frame: a varint length, then
+// the payload. A request payload is the opcode byte, a varint request ID and
+// the fields; a reply payload is a kind byte, the ID of the request it answers
+// and the fields, so a client can keep many requests in flight on one
+// connection. Pushes carry ID 0. Each field starts with a varint header:
+// value << 1 for a number, (length << 1) | 1 for a UTF-8 string followed by
+// its bytes.
+final class BinaryProtocol {
+    // the last byte is the protocol version; 2 added request IDs
+    static final byte[] MAGIC = {0, 'M', 'B', 2};
+    static final int MAX_FRAME = 16 * 1024 * 1024;
+
+    static final byte REPLY = 1;
+    // part of a long list reply; more frames follow and the last one is a REPLY
+    static final byte REPLY_PART = 2;
+    // new message for a subscribed connection: message ID, sender, body
+    static final byte PUSH = 3;
+
+    private BinaryProtocol() {
+    }
+
+    // Reads the rest of MAGIC after its first byte was already consumed
+    static void readMagic(InputStream in, int from) throws IOException {
+        for (int i = from; i < MAGIC.length; i++) {
+            if (in.read() != MAGIC[i]) {
+                throw new IOException("Bad protocol header");
+            }
+        }
+    }
+
+    static void writeVarint(OutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    static long readVarint(InputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException();
+            }
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    static void writeNumber(OutputStream out, long value) throws IOException {
+        writeVarint(out, value << 1);
+    }
+
+    static void writeString(OutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        writeVarint(out, ((long) bytes.length << 1) | 1);
+        out.write(bytes);
+    }
+
+    // Reads one frame payload, or returns null at end of stream
+    static byte[] readFrame(InputStream in) throws IOException {
+        Frame frame = new Frame();
+        if (!frame.read(in)) {
+            return null;
+        }
+        return Arrays.copyOf(frame.data, frame.length);
+    }
+
+    // Reusable buffer for reading frames without allocating one array per frame
+    static class Frame {
+        byte[] data = new byte[256];
+        int length;
+
+        // returns false at end of stream
+        boolean read(InputStream in) throws IOException {
+            int first = in.read();
+            if (first < 0) {
+                return false;
+            }
+            long size = first & 0x7F;
+            if ((first & 0x80) != 0) {
+                size |= readVarint(in) << 7;
+            }
+            if (size > MAX_FRAME) {
+                throw new IOException("Frame of " + size + " bytes is too large");
+            }
+            length = (int) size;
+            if (data.length < length) {
+                data = new byte[Math.max(length, data.length * 2)];
+            }
+            int read = 0;
+            while (read < length) {
+                int n = in.read(data, read, length - read);
+                if (n < 0) {
+                    throw new EOFException();
+                }
+                read += n;
+            }
+            return true;
+        }
+    }
+
+    static void writeFrame(OutputStream out, ByteArrayOutputStream payload) throws IOException {
+        writeVarint(out, payload.size());
+        payload.writeTo(out);
+    }
+
+    // Encodes a request; fields are Numbers or Strings
+    static void writeRequest(OutputStream out, int op, long requestId, Object... fields) throws IOException {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        payload.write(op);
+        writeVarint(payload, requestId);
+        for (Object field : fields) {
+            if (field instanceof Number) {
+                writeNumber(payload, ((Number) field).longValue());
+            } else {
+                writeString(payload, String.valueOf(field));
+            }
+        }
+        writeFrame(out, payload);
+        out.flush();
+    }
+
+    // ID of the request a reply payload answers
+    static long replyId(byte[] payload) throws IOException {
+        return new Cursor(payload, 1).varint();
+    }
+
+    // Decodes the string fields of a reply payload
+    static List<String> readReplyItems(byte[] payload) throws IOException {
+        List<String> items = new ArrayList<>();
+        Cursor c = new Cursor(payload, 1);
+        c.varint();
+        while (c.hasMore()) {
+            long header = c.varint();
+            if ((header & 1) == 0) {
+                items.add(Long.toString(header >>> 1));
+            } else {
+                items.add(c.string((int) (header >>> 1)));
+            }
+        }
+        return items;
+    }
+
+    // Reads fields out of a payload that is already in memory
+    static class Cursor {
+        private final byte[] data;
+        private int pos;
+
+        Cursor(byte[] data, int pos) {
+            this.data = data;
+            this.pos = pos;
+        }
+
+        boolean hasMore() {
+            return pos < data.length;
+        }
+
+        long varint() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                if (pos >= data.length) {
+                    throw new EOFException();
+                }
+                int b = data[pos++];
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException("Malformed varint");
+        }
+
+        String string(int length) throws IOException {
+            if (length > data.length - pos) {
+                throw new EOFException();
+            }
+            String s = new String(data, pos, length, StandardCharsets.UTF_8);
+            pos += length;
+            return s;
+        }
+    }
+}
@@ -0,0 +1,132 @@
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// Deflate for message bodies of at least a threshold size. Bodies are
+// compressed with a preset dictionary once one is ready: it is made of the
+// starts of the first bodies seen, which tends to capture the field names and
+// boilerplate that integrations repeat. It is rebuilt from the write-ahead log
+// at startup like everything else, so it is never saved.
+//
+// Layout of a compressed body: a byte saying whether the dictionary was used,
+// the length of the text as an int, then raw deflate data. Deflaters and
+// inflaters hold native memory, so a few are pooled instead of one per thread.
+public class BodyCompressor {
+    private static final int SAMPLE = 1024;
+
+    private final int threshold;
+    private final int level;
+    private final int dictionarySize;
+    private final ServerMetrics metrics;
+    private final Queue<Deflater> deflaters = new ConcurrentLinkedQueue<>();
+    private final Queue<Inflater> inflaters = new ConcurrentLinkedQueue<>();
+    // collects samples until it is full, then becomes dictionary
+    private ByteArrayOutputStream samples;
+    private volatile byte[] dictionary;
+
+    public BodyCompressor(int threshold, int level, int dictionarySize, ServerMetrics metrics) {
+        this.threshold = threshold;
+        this.level = level;
+        this.dictionarySize = dictionarySize;
+        this.metrics = metrics;
+        this.samples = dictionarySize > 0 ? new ByteArrayOutputStream(dictionarySize) : null;
+    }
+
+    // The compressed body, or null if it is below the threshold or does not shrink
+    public byte[] compress(String body) {
+        if (body.length() < threshold) {
+            return null;
+        }
+        long start = System.nanoTime();
+        byte[] raw = body.getBytes(StandardCharsets.UTF_8);
+        byte[] dict = dictionary;
+        if (dict == null && samples != null) {
+            dict = sample(raw);
+        }
+        Deflater deflater = deflaters.poll();
+        if (deflater == null) {
+            deflater = new Deflater(level, true);
+        }
+        byte[] out = new byte[5 + raw.length];
+        int n;
+        try {
+            if (dict != null) {
+                deflater.setDictionary(dict);
+            }
+            deflater.setInput(raw);
+            deflater.finish();
+            n = deflater.deflate(out, 5, out.length - 5);
+            if (!deflater.finished()) {
+                n = -1;
+            }
+        } finally {
+            deflater.reset();
+            deflaters.add(deflater);
+        }
+        if (n < 0 || 5 + n >= raw.length) {
+            metrics.bodyNotCompressed(System.nanoTime() - start);
+            return null;
+        }
+        out[0] = (byte) (dict != null ? 1 : 0);
+        out[1] = (byte) (raw.length >>> 24);
+        out[2] = (byte) (raw.length >>> 16);
+        out[3] = (byte) (raw.length >>> 8);
+        out[4] = (byte) raw.length;
+        byte[] compressed = Arrays.copyOf(out, 5 + n);
+        metrics.bodyCompressed(raw.length, compressed.length, System.nanoTime() - start);
+        return compressed;
+    }
+
+    public byte[] decompress(byte[] compressed) {
+        long start = System.nanoTime();
+        int length = (compressed[1] & 0xFF) << 24 | (compressed[2] & 0xFF) << 16
+                | (compressed[3] & 0xFF) << 8 | (compressed[4] & 0xFF);
+        byte[] raw = new byte[length];
+        Inflater inflater = inflaters.poll();
+        if (inflater == null) {
+            inflater = new Inflater(true);
+        }
+        try {
+            if (compressed[0] == 1) {
+                inflater.setDictionary(dictionary);
+            }
+            inflater.setInput(compressed, 5, compressed.length - 5);
+            int n = 0;
+            while (n < length) {
+                int got = inflater.inflate(raw, n, length - n);
+                if (got == 0 && (inflater.finished() || inflater.needsInput())) {
+                    throw new IllegalStateException("Compressed body is truncated");
+                }
+                n += got;
+            }
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("Compressed body is corrupt", e);
+        } finally {
+            inflater.reset();
+            inflaters.add(inflater);
+        }
+        metrics.bodyDecompressed(System.nanoTime() - start);
+        return raw;
+    }
+
+    // Adds the start of the body to the samples; returns the dictionary once
+    // it is complete. Bodies compressed before that go without one.
+    private synchronized byte[] sample(byte[] raw) {
+        if (dictionary != null) {
+            return dictionary;
+        }
+        int n = Math.min(Math.min(raw.length, SAMPLE), dictionarySize - samples.size());
+        samples.write(raw, 0, n);
+        if (samples.size() == dictionarySize) {
+            dictionary = samples.toByteArray();
+            samples = null;
+            return dictionary;
+        }
+        return null;
+    }
+}
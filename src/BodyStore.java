@@ -0,0 +1,7 @@
+// Off-heap home for message bodies. A stored body is identified by the handle
+// returned from put, which is all a Message has to keep.
+public interface BodyStore {
+    long put(byte[] body);
+
+    byte[] get(long handle);
+}
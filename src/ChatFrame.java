@@ -1,19 +1,31 @@
 import javax.swing.*;
 import java.awt.*;
 import java.awt.event.*;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 public class ChatFrame extends JFrame {
+    private static final int PAGE_SIZE = 100;
+    
+    private ClientRuntime runtime;
     private ClientConnection clientConnection;
     private String currentUser;
     private String authToken;
     private String selectedContact = "";
+    // unread messages by contact, shown as badges in contactList; used on the EDT only
+    private final Map<String, Integer> unread = new HashMap<>();
     
     private JTextArea messageArea;
     private JTextField messageInput;
+    private JTextField searchInput;
     private JComboBox<String> contactList;
     private JLabel userInfoLabel;
     
-    public ChatFrame(ClientConnection clientConnection, String currentUser, String authToken) {
+    public ChatFrame(ClientRuntime runtime, ClientConnection clientConnection, String currentUser, String authToken) {
+        this.runtime = runtime;
         this.clientConnection = clientConnection;
         this.currentUser = currentUser;
         this.authToken = authToken;
@@ -53,6 +65,9 @@ public class ChatFrame extends JFrame {
         
         // Load contacts
         loadContacts();
+        
+        // New messages are pushed by the server instead of polled
+        subscribe();
     }
     
     private JPanel createHeader() {
@@ -77,6 +92,18 @@ public class ChatFrame extends JFrame {
         
         header.add(userInfo, BorderLayout.WEST);
         
+        JPanel searchPanel = new JPanel(new BorderLayout(5, 0));
+        searchPanel.setBackground(Color.WHITE);
+        searchPanel.setBorder(BorderFactory.createEmptyBorder(5, 40, 5, 40));
+        searchInput = new JTextField();
+        searchInput.setFont(new Font("Arial", Font.PLAIN, 12));
+        searchInput.addActionListener(e -> search());
+        JButton searchButton = new JButton("Search");
+        searchButton.addActionListener(e -> search());
+        searchPanel.add(searchInput, BorderLayout.CENTER);
+        searchPanel.add(searchButton, BorderLayout.EAST);
+        header.add(searchPanel, BorderLayout.CENTER);
+        
         JButton logoutButton = new JButton("Logout");
         logoutButton.setFont(new Font("Arial", Font.PLAIN, 12));
         logoutButton.addActionListener(e -> logout());
@@ -96,6 +123,18 @@ public class ChatFrame extends JFrame {
         contactsLabel.setFont(new Font("Arial", Font.BOLD, 12));
         
         contactList = new JComboBox<>();
+        contactList.setRenderer(new DefaultListCellRenderer() {
+            @Override
+            public Component getListCellRendererComponent(JList<?> list, Object value, int index,
+                                                          boolean isSelected, boolean cellHasFocus) {
+                super.getListCellRendererComponent(list, value, index, isSelected, cellHasFocus);
+                Integer count = unread.get(value);
+                if (count != null) {
+                    setText(value + " (" + count + ")");
+                }
+                return this;
+            }
+        });
         contactList.addActionListener(e -> {
             selectedContact = (String) contactList.getSelectedItem();
             if (selectedContact != null && !selectedContact.isEmpty()) {
@@ -161,75 +200,140 @@ public class ChatFrame extends JFrame {
     }
     
     private void loadContacts() {
-        new Thread(() -> {
-            try {
-                String command = "localhost 5000 2 " + authToken;
-                System.out.println("Sending: " + command);
-                clientConnection.sendMessage(command);
-                
-                String response = clientConnection.receiveMessage();
-                System.out.println("Response: " + response);
-                
-                if (response != null && !response.isEmpty()) {
-                    String[] contacts = response.split("/n");
-                    SwingUtilities.invokeLater(() -> {
-                        contactList.removeAllItems();
-                        for (String contact : contacts) {
-                            String trimmed = contact.trim();
-                            if (!trimmed.isEmpty() && trimmed.contains(". ")) {
-                                String username = trimmed.split(". ", 2)[1];
-                                System.out.println("Adding contact: " + username);
-                                contactList.addItem(username);
-                            }
-                        }
-                    });
-                }
-            } catch (Exception e) {
+        // repeated Refresh clicks while the list is loading are dropped
+        runtime.submit("contacts", () -> {
+            System.out.println("Sending: list users");
+            List<String> contacts = new ArrayList<>();
+            clientConnection.requestPages(2, Long.parseLong(authToken), PAGE_SIZE, contacts::addAll);
+            System.out.println("Response: " + contacts.size() + " users");
+            return contacts;
+        }, (contacts, e) -> {
+            if (e != null) {
                 System.err.println("Error loading contacts: " + e.getMessage());
-                e.printStackTrace();
+                return;
+            }
+            if (!contacts.isEmpty()) {
+                contactList.removeAllItems();
+                for (String contact : contacts) {
+                    String trimmed = contact.trim();
+                    if (!trimmed.isEmpty() && trimmed.contains(". ")) {
+                        String username = trimmed.split(". ", 2)[1];
+                        contactList.addItem(username);
+                    }
+                }
             }
-        }).start();
+            loadUnread();
+        });
+    }
+    
+    private void loadUnread() {
+        runtime.submit("unread", () -> clientConnection.unreadBySender(Long.parseLong(authToken)), (counts, e) -> {
+            if (e != null) {
+                System.err.println("Error loading unread counts: " + e.getMessage());
+                return;
+            }
+            unread.clear();
+            unread.putAll(counts);
+            unread.remove(selectedContact);
+            contactList.repaint();
+        });
+    }
+    
+    private void subscribe() {
+        clientConnection.setPushListener((id, sender, body) ->
+            runtime.ui(() -> showPushedMessage(id, sender, body)));
+        clientConnection.requestAsync(7, Long.parseLong(authToken)).whenComplete((reply, e) -> {
+            if (e != null || !reply.contains("OK")) {
+                System.err.println("Server refused push delivery: " + (e != null ? e.getMessage() : reply));
+            }
+        });
+    }
+    
+    private void showPushedMessage(int id, String sender, String body) {
+        if (sender.equals(selectedContact)) {
+            messageArea.append("[" + sender + "]: " + body + "\n");
+            // it has been seen, so mark it read (op 9)
+            clientConnection.requestAsync(9, Long.parseLong(authToken), 1, 1, id);
+        } else {
+            unread.merge(sender, 1, Integer::sum);
+            contactList.repaint();
+        }
     }
     
     private void loadMessages() {
-        messageArea.setText("Loading messages from " + selectedContact + "...");
-        new Thread(() -> {
-            try {
-                String command = "localhost 5000 4 " + authToken;
-                System.out.println("Sending: " + command);
-                clientConnection.sendMessage(command);
-                
-                String response = clientConnection.receiveMessage();
-                System.out.println("Response: " + response);
-                
-                if (response != null && !response.isEmpty()) {
-                    String[] messages = response.split("/n");
-                    StringBuilder sb = new StringBuilder();
-                    
-                    for (String msg : messages) {
-                        if (!msg.trim().isEmpty()) {
-                            System.out.println("Message: " + msg);
-                            sb.append(msg).append("\n");
-                        }
-                    }
-                    
-                    final String messageText = sb.toString();
-                    SwingUtilities.invokeLater(() -> {
-                        if (messageText.isEmpty()) {
-                            messageArea.setText("No messages with " + selectedContact);
-                        } else {
-                            messageArea.setText(messageText);
-                        }
-                    });
-                } else {
-                    SwingUtilities.invokeLater(() -> messageArea.setText("No messages"));
+        String contact = selectedContact;
+        messageArea.setText("Loading messages from " + contact + "...");
+        runtime.submit("messages " + contact, () -> {
+            System.out.println("Sending: check messages");
+            // the latest page of the conversation, both directions, marked read
+            List<String> messages = clientConnection.history(Long.parseLong(authToken), contact, 0, PAGE_SIZE, true);
+            StringBuilder sb = new StringBuilder();
+            for (String msg : messages) {
+                if (msg.startsWith(ClientHandler.NEXT_PAGE)) {
+                    sb.append("(earlier messages not shown)\n");
+                    continue;
                 }
-            } catch (Exception e) {
+                // "<id>. (<sender>)<body>"
+                int open = msg.indexOf(". (");
+                int close = msg.indexOf(')', open);
+                String sender = msg.substring(open + 3, close);
+                sb.append("[").append(sender.equals(currentUser) ? "You" : sender).append("]: ")
+                    .append(msg.substring(close + 1)).append("\n");
+            }
+            System.out.println("Response: " + messages.size() + " messages");
+            return sb.toString();
+        }, (text, e) -> {
+            if (!contact.equals(selectedContact)) {
+                return;
+            }
+            if (e != null) {
                 System.err.println("Error loading messages: " + e.getMessage());
-                e.printStackTrace();
-                SwingUtilities.invokeLater(() -> messageArea.setText("Error: " + e.getMessage()));
+                messageArea.setText("Error: " + e.getMessage());
+            } else if (text.isEmpty()) {
+                messageArea.setText("No messages with " + contact);
+            } else {
+                messageArea.setText(text);
             }
-        }).start();
+            // opening the conversation marked its messages read
+            if (e == null && unread.remove(contact) != null) {
+                contactList.repaint();
+            }
+        });
+    }
+    
+    private void search() {
+        String query = searchInput.getText().trim();
+        if (query.isEmpty()) {
+            return;
+        }
+        messageArea.setText("Searching for " + query + "...");
+        runtime.submit("search", () -> {
+            System.out.println("Sending: search " + query);
+            // newest matches first, "<id>. from: <sender>" with "*" if unread
+            List<String> found = clientConnection.search(Long.parseLong(authToken), query, 0, PAGE_SIZE);
+            StringBuilder sb = new StringBuilder();
+            for (String item : found) {
+                if (item.startsWith(ClientHandler.NEXT_PAGE)) {
+                    sb.append("(older matches not shown)\n");
+                } else if (item.contains(". from: ")) {
+                    sb.append(item).append("\n");
+                } else {
+                    // an error reply, such as "Search not enabled"
+                    throw new IOException(item);
+                }
+            }
+            System.out.println("Response: " + found.size() + " results");
+            return sb.toString();
+        }, (text, e) -> {
+            if (e != null) {
+                System.err.println("Error searching: " + e.getMessage());
+                messageArea.setText("Error: " + e.getMessage());
+            } else if (text.isEmpty()) {
+                messageArea.setText("No messages match " + query);
+            } else {
+                messageArea.setText("Messages matching " + query + ", newest first:\n" + text);
+            }
+        });
     }
     
     private void sendMessage() {
@@ -249,39 +353,32 @@ public class ChatFrame extends JFrame {
         
         messageInput.setEnabled(false);
         
-        new Thread(() -> {
-            try {
-                String command = "localhost 5000 3 " + authToken + " " + selectedContact + " " + message;
-                System.out.println("Sending: " + command);
-                clientConnection.sendMessage(command);
-                
-                String response = clientConnection.receiveMessage();
-                System.out.println("Response: " + response);
-                
-                SwingUtilities.invokeLater(() -> {
-                    messageInput.setEnabled(true);
-                    if (response != null && response.contains("OK")) {
-                        messageArea.append("[You]: " + message + "\n");
-                        messageInput.setText("");
-                    } else {
-                        JOptionPane.showMessageDialog(ChatFrame.this,
-                            "Failed to send message: " + response,
-                            "Send Error",
-                            JOptionPane.ERROR_MESSAGE);
-                    }
-                });
-            } catch (Exception e) {
-                System.err.println("Error sending message: " + e.getMessage());
-                e.printStackTrace();
-                SwingUtilities.invokeLater(() -> {
-                    messageInput.setEnabled(true);
+        // no thread needed: the request is written on the I/O thread and the
+        // reply completes the future on the connection's reader thread
+        System.out.println("Sending: message to " + selectedContact);
+        clientConnection.requestAsync(3, Long.parseLong(authToken), selectedContact, message)
+            .whenComplete((reply, e) -> runtime.ui(() -> {
+                messageInput.setEnabled(true);
+                if (e != null) {
+                    System.err.println("Error sending message: " + e.getMessage());
                     JOptionPane.showMessageDialog(ChatFrame.this,
                         "Error: " + e.getMessage(),
                         "Send Error",
                         JOptionPane.ERROR_MESSAGE);
-                });
-            }
-        }).start();
+                    return;
+                }
+                String response = reply.isEmpty() ? null : reply.get(0);
+                System.out.println("Response: " + response);
+                if (response != null && response.contains("OK")) {
+                    messageArea.append("[You]: " + message + "\n");
+                    messageInput.setText("");
+                } else {
+                    JOptionPane.showMessageDialog(ChatFrame.this,
+                        "Failed to send message: " + response,
+                        "Send Error",
+                        JOptionPane.ERROR_MESSAGE);
+                }
+            }));
     }
     
     private void logout() {
@@ -290,6 +387,7 @@ public class ChatFrame extends JFrame {
         } catch (Exception e) {
             e.printStackTrace();
         }
+        runtime.shutdown();
         
         SwingUtilities.invokeLater(() -> {
             LoginFrame loginFrame = new LoginFrame();
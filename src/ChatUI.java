@@ -7,20 +7,28 @@ import javafx.scene.layout.Priority;
 import javafx.scene.layout.VBox;
 import javafx.stage.Stage;
 
+import java.util.ArrayList;
+import java.util.List;
+
 public class ChatUI {
+    private static final int PAGE_SIZE = 100;
+    
     private Stage stage;
     private ClientConnection clientConnection;
     private String currentUser;
+    private String authToken;
     private String selectedContact = "";
     
     private TextArea messageArea;
     private TextField messageInput;
+    private TextField searchInput;
     private ComboBox<String> contactList;
     private Label userInfoLabel;
     
-    public ChatUI(ClientConnection clientConnection, String currentUser) {
+    public ChatUI(ClientConnection clientConnection, String currentUser, String authToken) {
         this.clientConnection = clientConnection;
         this.currentUser = currentUser;
+        this.authToken = authToken;
     }
     
     public void show(Stage stage) {
@@ -93,9 +101,15 @@ public class ChatUI {
             loginUI.show();
         });
         
+        searchInput = new TextField();
+        searchInput.setPromptText("Search messages...");
+        searchInput.setOnAction(e -> search());
+        Button searchButton = new Button("Search");
+        searchButton.setOnAction(e -> search());
+        
         header.getChildren().addAll(userInfo, new Separator());
         HBox.setHgrow(userInfo, Priority.ALWAYS);
-        header.getChildren().add(logoutButton);
+        header.getChildren().addAll(searchInput, searchButton, logoutButton);
         
         return header;
     }
@@ -172,18 +186,16 @@ public class ChatUI {
     private void loadContacts() {
         new Thread(() -> {
             try {
-                // Request contact list: username 4
-                String command = currentUser + " 4";
-                clientConnection.sendMessage(command);
-                
-                String response = clientConnection.receiveMessage();
-                if (response != null && !response.isEmpty()) {
-                    String[] contacts = response.split("\n");
+                // Request contact list: operation 2, "<n>. <username>" per user
+                List<String> contacts = new ArrayList<>();
+                clientConnection.requestPages(2, Long.parseLong(authToken), PAGE_SIZE, contacts::addAll);
+                if (!contacts.isEmpty()) {
                     Platform.runLater(() -> {
                         contactList.getItems().clear();
                         for (String contact : contacts) {
-                            if (!contact.trim().isEmpty()) {
-                                contactList.getItems().add(contact.trim());
+                            String trimmed = contact.trim();
+                            if (trimmed.contains(". ")) {
+                                contactList.getItems().add(trimmed.split(". ", 2)[1]);
                             }
                         }
                     });
@@ -196,31 +208,49 @@ public class ChatUI {
     
     private void loadMessages() {
         messageArea.clear();
+        String contact = selectedContact;
         new Thread(() -> {
             try {
-                // Request messages: username receiver 2
-                String command = currentUser + " " + selectedContact + " 2";
-                clientConnection.sendMessage(command);
-                
-                String response = clientConnection.receiveMessage();
-                if (response != null && !response.isEmpty()) {
-                    String[] messages = response.split("\n");
-                    StringBuilder sb = new StringBuilder();
-                    
-                    for (String msg : messages) {
-                        if (!msg.trim().isEmpty()) {
-                            String[] parts = msg.split("\\|");
-                            if (parts.length >= 3) {
-                                String sender = parts[0].trim();
-                                String body = parts[2].trim();
-                                String prefix = sender.equals(currentUser) ? "[You]" : "[" + sender + "]";
-                                sb.append(prefix).append(": ").append(body).append("\n");
-                            }
-                        }
+                // Open the conversation: its latest page in both directions (operation 14)
+                List<String> messages = clientConnection.history(Long.parseLong(authToken), contact, 0, PAGE_SIZE, true);
+                StringBuilder sb = new StringBuilder();
+                for (String msg : messages) {
+                    if (msg.startsWith(ClientHandler.NEXT_PAGE)) {
+                        sb.append("(earlier messages not shown)\n");
+                        continue;
+                    }
+                    // "<id>. (<sender>)<body>"
+                    int open = msg.indexOf(". (");
+                    int close = msg.indexOf(')', open);
+                    String sender = msg.substring(open + 3, close);
+                    sb.append("[").append(sender.equals(currentUser) ? "You" : sender).append("]: ")
+                        .append(msg.substring(close + 1)).append("\n");
+                }
+                Platform.runLater(() -> {
+                    if (contact.equals(selectedContact)) {
+                        messageArea.setText(sb.toString());
                     }
-                    
-                    Platform.runLater(() -> messageArea.setText(sb.toString()));
+                });
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }).start();
+    }
+    
+    private void search() {
+        String query = searchInput.getText().trim();
+        if (query.isEmpty()) {
+            return;
+        }
+        new Thread(() -> {
+            try {
+                // Newest matches first (operation 15), "<id>. from: <sender>" with "*" if unread
+                List<String> found = clientConnection.search(Long.parseLong(authToken), query, 0, PAGE_SIZE);
+                StringBuilder sb = new StringBuilder("Messages matching " + query + ", newest first:\n");
+                for (String item : found) {
+                    sb.append(item.startsWith(ClientHandler.NEXT_PAGE) ? "(older matches not shown)" : item).append("\n");
                 }
+                Platform.runLater(() -> messageArea.setText(sb.toString()));
             } catch (Exception e) {
                 e.printStackTrace();
             }
@@ -245,15 +275,17 @@ public class ChatUI {
         
         new Thread(() -> {
             try {
-                // Send message: sender receiver body 3
-                String command = currentUser + " " + selectedContact + " " + message + " 3";
-                clientConnection.sendMessage(command);
-                
-                String response = clientConnection.receiveMessage();
+                // Send message: operation 3 with token, receiver and body
+                List<String> reply = clientConnection.request(3, Long.parseLong(authToken), selectedContact, message);
+                String response = reply == null || reply.isEmpty() ? null : reply.get(0);
                 
                 Platform.runLater(() -> {
-                    messageArea.appendText("[You]: " + message + "\n");
-                    messageInput.clear();
+                    if ("OK".equals(response)) {
+                        messageArea.appendText("[You]: " + message + "\n");
+                        messageInput.clear();
+                    } else {
+                        messageArea.appendText("Failed to send message: " + response + "\n");
+                    }
                 });
             } catch (Exception e) {
                 e.printStackTrace();
@@ -261,24 +293,23 @@ public class ChatUI {
         }).start();
     }
     
+    // New messages are pushed by the server after a subscribe (operation 7)
     private void startMessageListener() {
-        new Thread(() -> {
-            while (true) {
-                try {
-                    String message = clientConnection.receiveMessage();
-                    if (message != null && !message.isEmpty()) {
-                        final String msg = message;
-                        Platform.runLater(() -> {
-                            if (!selectedContact.isEmpty()) {
-                                messageArea.appendText(msg + "\n");
-                            }
-                        });
-                    }
-                    Thread.sleep(100);
-                } catch (Exception e) {
-                    break;
-                }
+        clientConnection.setPushListener((id, sender, body) -> Platform.runLater(() -> {
+            if (sender.equals(selectedContact)) {
+                messageArea.appendText("[" + sender + "]: " + body + "\n");
+            } else {
+                messageArea.appendText(id + ". from: " + sender + "*\n");
+            }
+        }));
+        Thread subscriber = new Thread(() -> {
+            try {
+                clientConnection.subscribe(Long.parseLong(authToken));
+            } catch (Exception e) {
+                e.printStackTrace();
             }
-        }).setDaemon(true);
+        });
+        subscriber.setDaemon(true);
+        subscriber.start();
     }
 }
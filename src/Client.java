@@ -1,60 +1,71 @@
 import java.io.*;
-import java.net.*;
 import java.util.*;
 
 // Client class
 class Client {
+    private static final int PAGE_SIZE = 100;
+
+    private static void print(List<String> reply) {
+        if (reply != null) {
+            for (String s : reply) {
+                System.out.println(s);
+            }
+        }
+    }
 
     // driver code
     public static void main(String[] args)
     {
+        // java Client --load <host> <port> [options]: simulate many users, see LoadGenerator
+        if (args.length > 0 && args[0].equals("--load")) {
+            try {
+                LoadGenerator.main(Arrays.copyOfRange(args, 1, args.length));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return;
+        }
         // establish a connection by providing host and port
         // number
-        try (Socket socket = new Socket(args[0], Integer.parseInt(args[1]))) {
-           String a=args[0];
-           for(int i=1;i< args.length;i++){
-               a=a.concat(" ");
-              a=a.concat(args[i]);
-           }
-            // writing to server
-            PrintWriter out = new PrintWriter(
-                    socket.getOutputStream(), true);
-
-            // reading from server
-            BufferedReader in
-                    = new BufferedReader(new InputStreamReader(
-                    socket.getInputStream()));
-
-            // object of scanner class
-            Scanner sc = new Scanner(System.in);
-            String line = null;
-            int firstTime=0;
-
-
-                if(firstTime==0){
-                  out.println(a);
-                  out.flush();
-                  if(args[2].equals("2")  ){
-                      String s[]=in.readLine().split("/n");
-                      for(int i=0;i<s.length;i++){
-                          System.out.println(s[i]);
-                      }
-                  }else if(args[2].equals("4")){
-                      String s[]=in.readLine().split("/n");
-                      for(int i=0;i<s.length;i++) {
-                          System.out.println(s[i]);
-                      }
-
-                  }else
-                    System.out.println(in.readLine());
-                    firstTime++;
+        try {
+            ClientConnection connection = new ClientConnection(args[0], Integer.parseInt(args[1]));
+            int op = Integer.parseInt(args[2]);
 
+            // the auth token is a number, everything else (and the admin key of
+            // operation 11) goes as text;
+            // for operation 3, and operation 8 with one body for n recipients,
+            // the message is the rest of the arguments, as is the query of
+            // operation 15
+            int bodyAt = args.length;
+            if (op == 3) {
+                bodyAt = 5;
+            } else if (op == 15) {
+                bodyAt = 6;
+            } else if (op == 8 && args.length > 4 && !args[4].equals("0")) {
+                bodyAt = 5 + Integer.parseInt(args[4]);
+            }
+            List<Object> fields = new ArrayList<>();
+            for (int i = 3; i < args.length; i++) {
+                if (i == bodyAt) {
+                    fields.add(String.join(" ", Arrays.copyOfRange(args, bodyAt, args.length)));
+                    break;
                 }
+                if (i == 3 && op != 1 && op != 11) {
+                    fields.add(Long.parseLong(args[i]));
+                } else {
+                    fields.add(args[i]);
+                }
+            }
 
+            // writing to server and reading the reply; lists are fetched
+            // page by page unless an offset and limit were given
+            if ((op == 2 || op == 4) && fields.size() == 1) {
+                connection.requestPages(op, (Long) fields.get(0), PAGE_SIZE, Client::print);
+            } else {
+                print(connection.request(op, fields.toArray()));
+            }
 
-
-            // closing the scanner object
-            sc.close();
+            connection.disconnect();
         }
         catch (IOException e) {
             e.printStackTrace();
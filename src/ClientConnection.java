@@ -1,26 +1,255 @@
 import java.io.*;
 import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 
+// Connection to the server speaking the binary protocol (see BinaryProtocol).
+//
+// Requests are pipelined: every request gets an ID, any number of them can be
+// in flight at once, and one reader thread takes every frame off the socket and
+// completes the future waiting for that ID. Messages pushed by the server after
+// a subscribe (op 7) go to the PushListener on the same thread.
 public class ClientConnection {
+
+    // Receives messages pushed to a subscribed connection, on the reader thread
+    public interface PushListener {
+        void onMessage(int messageId, String sender, String body);
+    }
+
+    // A request waiting for its reply, and the items of the parts received so far
+    private static class Pending {
+        final CompletableFuture<List<String>> future = new CompletableFuture<>();
+        final List<String> items = new ArrayList<>();
+    }
+
     private Socket socket;
-    private PrintWriter out;
-    private BufferedReader in;
-    
+    private OutputStream out;
+    private InputStream in;
+    private final AtomicLong lastRequestId = new AtomicLong();
+    private final Map<Long, Pending> pending = new ConcurrentHashMap<>();
+    private volatile boolean closed;
+    private volatile PushListener pushListener;
+    // thread requests are written on; by default the caller's
+    private volatile Executor writer = Runnable::run;
+    // replies owed to sendMessage calls, in order
+    private final Queue<CompletableFuture<List<String>>> legacyReplies = new ConcurrentLinkedQueue<>();
+
     public ClientConnection(String host, int port) throws IOException {
         this.socket = new Socket(host, port);
-        this.out = new PrintWriter(socket.getOutputStream(), true);
-        this.in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+        this.out = new BufferedOutputStream(socket.getOutputStream());
+        this.in = new BufferedInputStream(socket.getInputStream());
+        out.write(BinaryProtocol.MAGIC);
+        out.flush();
+        BinaryProtocol.readMagic(in, 0);
+        Thread reader = new Thread(this::readLoop, "client-reader");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    public void setPushListener(PushListener listener) {
+        this.pushListener = listener;
+    }
+
+    public void setWriter(Executor writer) {
+        this.writer = writer;
+    }
+
+    // Asks the server to push new messages of the account to this connection
+    public boolean subscribe(long token) throws IOException {
+        List<String> reply = request(7, token);
+        return reply.equals(Collections.singletonList("OK"));
+    }
+
+    // Sends one request without waiting; the future completes on the reader thread
+    // with the reply items, or exceptionally once the connection is closed.
+    // Fields are Numbers or Strings.
+    public CompletableFuture<List<String>> requestAsync(int op, Object... fields) {
+        long id = lastRequestId.incrementAndGet();
+        Pending p = new Pending();
+        pending.put(id, p);
+        try {
+            writer.execute(() -> {
+                try {
+                    synchronized (out) {
+                        BinaryProtocol.writeRequest(out, op, id, fields);
+                    }
+                } catch (IOException e) {
+                    pending.remove(id);
+                    p.future.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            pending.remove(id);
+            p.future.completeExceptionally(new IOException("Connection closed", e));
+        }
+        if (closed && pending.remove(id) != null) {
+            p.future.completeExceptionally(new EOFException("Connection closed"));
+        }
+        return p.future;
+    }
+
+    // Sends one request and waits for its reply items
+    public List<String> request(int op, Object... fields) throws IOException {
+        return await(requestAsync(op, fields));
+    }
+
+    private static List<String> await(CompletableFuture<List<String>> reply) throws IOException {
+        try {
+            return reply.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
     }
-    
+
+    // Fetches a list (op 2 or op 4) a page at a time, handing every page to onPage
+    public void requestPages(int op, long token, int pageSize, Consumer<List<String>> onPage) throws IOException {
+        int offset = 0;
+        while (true) {
+            List<String> page = request(op, token, offset, pageSize);
+            String last = page.isEmpty() ? "" : page.get(page.size() - 1);
+            if (!last.startsWith(ClientHandler.NEXT_PAGE)) {
+                onPage.accept(page);
+                return;
+            }
+            page.remove(page.size() - 1);
+            onPage.accept(page);
+            offset = Integer.parseInt(last.substring(ClientHandler.NEXT_PAGE.length()));
+        }
+    }
+
+    // Bodies of the given messages as "<id>. (<sender>)<body>" (op 9), marking them
+    // read if markRead; asks for at most ClientHandler.MAX_BULK_READ per request
+    public List<String> readMessages(long token, List<Integer> ids, boolean markRead) throws IOException {
+        List<String> messages = new ArrayList<>(ids.size());
+        for (int start = 0; start < ids.size(); start += ClientHandler.MAX_BULK_READ) {
+            List<Integer> chunk = ids.subList(start, Math.min(ids.size(), start + ClientHandler.MAX_BULK_READ));
+            List<Object> fields = new ArrayList<>(chunk.size() + 3);
+            fields.add(token);
+            fields.add(markRead ? 1 : 0);
+            fields.add(chunk.size());
+            fields.addAll(chunk);
+            messages.addAll(request(9, fields.toArray()));
+        }
+        return messages;
+    }
+
+    // Unread messages by sender (op 10); senders with none are left out
+    public Map<String, Integer> unreadBySender(long token) throws IOException {
+        Map<String, Integer> unread = new HashMap<>();
+        for (String entry : request(10, token)) {
+            // "<sender>: <count>", after the "unread <total>" line
+            int colon = entry.lastIndexOf(": ");
+            if (colon > 0) {
+                unread.put(entry.substring(0, colon), Integer.parseInt(entry.substring(colon + 2)));
+            }
+        }
+        return unread;
+    }
+
+    // One page of the conversation with contact (op 14): up to pageSize messages in
+    // both directions with IDs below beforeId (0 for the newest), oldest first, as
+    // "<id>. (<sender>)<body>". If older messages remain, the first entry is
+    // "next <id>", the beforeId of the page before. Received messages are marked
+    // read if markRead.
+    public List<String> history(long token, String contact, int beforeId, int pageSize, boolean markRead)
+            throws IOException {
+        List<String> page = request(14, token, contact, markRead ? 1 : 0, beforeId, pageSize);
+        Collections.reverse(page);
+        return page;
+    }
+
+    // One page of messages with every word of query (op 15), newest first, as
+    // "<id>. from: <sender>" with "*" if unread. If older matches remain, the
+    // last entry is "next <id>", the beforeId of the next page. "from:<user>"
+    // in the query matches the sender.
+    public List<String> search(long token, String query, int beforeId, int pageSize) throws IOException {
+        return request(15, token, beforeId, pageSize, query);
+    }
+
+    // Text-style command "<host> <port> <op> <args...>", kept for callers of the line protocol
     public void sendMessage(String message) throws IOException {
-        out.println(message);
-        out.flush();
+        String[] tokens = message.split(" ");
+        List<Object> fields = new ArrayList<>();
+        int op = Integer.parseInt(tokens[2]);
+        for (int i = 3; i < tokens.length; i++) {
+            if (op == 3 && i == 5) {
+                // the body is the rest of the line
+                int bodyStart = 0;
+                for (int j = 0; j < 5; j++) {
+                    bodyStart += tokens[j].length() + 1;
+                }
+                fields.add(message.substring(bodyStart).trim());
+                break;
+            }
+            fields.add(tokens[i].matches("[1-9][0-9]{0,17}|[1-4][0-9]{18}") ? (Object) Long.parseLong(tokens[i]) : tokens[i]);
+        }
+        legacyReplies.add(requestAsync(op, fields.toArray()));
     }
-    
+
+    // Reply to the oldest sendMessage call, with list items joined by "/n" as in the line protocol
     public String receiveMessage() throws IOException {
-        return in.readLine();
+        CompletableFuture<List<String>> reply = legacyReplies.poll();
+        if (reply == null) {
+            throw new IllegalStateException("No request was sent");
+        }
+        return String.join("/n", await(reply));
     }
-    
+
+    // Reader thread: completes the request each reply belongs to, joining the
+    // REPLY_PART frames of a long list, and hands pushes to the listener
+    private void readLoop() {
+        try {
+            byte[] frame;
+            while ((frame = BinaryProtocol.readFrame(in)) != null) {
+                if (frame[0] == BinaryProtocol.PUSH) {
+                    List<String> event = BinaryProtocol.readReplyItems(frame);
+                    PushListener listener = pushListener;
+                    if (listener != null) {
+                        listener.onMessage(Integer.parseInt(event.get(0)), event.get(1), event.get(2));
+                    }
+                    continue;
+                }
+                long id = BinaryProtocol.replyId(frame);
+                Pending p = frame[0] == BinaryProtocol.REPLY_PART ? pending.get(id) : pending.remove(id);
+                if (p == null) {
+                    throw new IOException("Reply to unknown request " + id);
+                }
+                p.items.addAll(BinaryProtocol.readReplyItems(frame));
+                if (frame[0] != BinaryProtocol.REPLY_PART) {
+                    p.future.complete(p.items);
+                }
+            }
+        } catch (IOException e) {
+            // closed by disconnect() or by the server
+        } finally {
+            closed = true;
+            for (Long id : pending.keySet()) {
+                Pending p = pending.remove(id);
+                if (p != null) {
+                    p.future.completeExceptionally(new EOFException("Connection closed"));
+                }
+            }
+        }
+    }
+
     public void disconnect() throws IOException {
         if (in != null) {
             in.close();
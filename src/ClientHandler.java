@@ -1,268 +1,562 @@
-import java.io.BufferedReader;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.PrintWriter;
+import java.io.Reader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
 import java.net.Socket;
 import java.util.ArrayList;
-import java.util.Random;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 // ClientHandler class
 public class ClientHandler implements Runnable {
-    private static int messagesId = 0;
+    // last item of a page when more follow, with the offset to ask for next
+    static final String NEXT_PAGE = "next ";
+    // most messages op 9 returns in one reply
+    static final int MAX_BULK_READ = 1000;
+    // single-line replies that report a failed request, counted by ServerMetrics
+    private static final Set<String> ERROR_REPLIES = new HashSet<>(Arrays.asList(
+            "Invalid Username", "Sorry, the user already exists", "Invalid Auth Token",
+            "User does not exist", "Message too long", "Message ID does not exist", "Message does not exist",
+            "Push not supported", "Cannot end the last session", "Invalid admin key", "Search not enabled",
+            "Search words need 2 or more letters or digits",
+            "Unknown operation", "Invalid request", "Internal error"));
     private Socket clientSocket;
-    private ArrayList<Account> accounts;
-    private int currentAuthToken;
+    private MessageStore store;
+    private AccountDirectory accounts;
+    private ServerMetrics metrics;
+    // reused for every request of this connection
+    private final Request request = new Request();
+    // how this connection receives pushed messages, and for which accounts
+    private Subscriptions.Subscriber subscriber;
+    private final List<String> subscribedTo = new ArrayList<>();
 
     private boolean CheckIfExistsUsername(String username) {
-        for (Account a : accounts) {
-            if (a.getUsername().equals(username)) {
-
-                return true;
-            }
-
-        }
-        return false;
+        return accounts.containsUsername(username);
 
     }
 
-    private String getMessageFromIndex(int messagesId, int authToken) {
+    private String getMessageFromIndex(int messagesId, long authToken) {
         String messBody = "-1";
-        for (Account a : accounts) {
-            if (a.getAuthToken() != authToken) {
-                continue;
-            }
-            for (int i = 0; i < a.getSizeOfMassages(); i++) {
-                if (a.getMessage(i).getMessageID() == messagesId) {
-                    messBody = "(" + a.getMessage(i).getSender() + ")" + a.getMessage(i).getBody();
-                    a.getMessage(i).setRead(true);
-                    break;
-
-                }
-            }
+        Account a = accounts.getByToken(authToken);
+        if (a == null) {
+            return messBody;
+        }
+        Message m = store.read(a, messagesId);
+        if (m != null) {
+            messBody = "(" + m.getSender() + ")" + m.getBody();
         }
         return messBody;
     }
 
-    private boolean checkIfTokenExist(int token) {
-        for (Account a : accounts) {
-            if (a.getAuthToken() == token) {
-                return true;
-            }
-        }
-        return false;
+    private boolean checkIfTokenExist(long token) {
+        return accounts.containsToken(token);
 
     }
 
-    private String returnUsernameOfToken(int authToken) {
-        for (Account a : accounts) {
-            if (a.getAuthToken() == authToken) {
-                return a.getUsername();
-            }
+    private boolean removeMessage(int messageId,long authToken){
+        Account a = accounts.getByToken(authToken);
+        if (a == null) {
+            return false;
         }
-        return "";
-    }
+        return store.delete(a, messageId);
 
-    private int getIndexOfUsername(String username) {
-        int i = 0;
-        for (Account a : accounts) {
-            if (a.getUsername().equals(username)) {
-                break;
-            }
-            i++;
-        }
-        return i;
 
     }
 
-
-    public int createAuthToken() {
-        int max = 9999;
-        int min = 1000;
-        Random rand = new Random();
-        int b = (int) (Math.random() * (max - min + 1) + min);
-        return b;
+    // Optional paging argument of op 2 and op 4
+    private static int pageArg(Request r, int i, int def) {
+        if (r.argCount() <= i) {
+            return def;
+        }
+        int value = r.intArg(i);
+        if (value < 0) {
+            throw new IllegalArgumentException("Negative page argument");
+        }
+        return value;
     }
 
-    private int getIndexOfToken(int token) {
-        int i = 0;
-        for (Account a : accounts) {
-            if (a.getAuthToken() == token) {
-                break;
+    // Op 8, either "<token> <n> <recipient 1> ... <recipient n> <body>" sending one
+    // body to n users, or "<token> 0 <recipient> <body> <recipient> <body> ..."
+    // sending each body to the recipient before it. Writes "<recipient>: <status>"
+    // for every recipient, in request order.
+    private void sendBatch(Account sender, Request r, Reply out) throws IOException {
+        int n = r.intArg(1);
+        // checked before the arithmetic below, which a huge n would overflow
+        if (n < 0 || n >= r.argCount()) {
+            throw new IllegalArgumentException("Malformed batch");
+        }
+        boolean pairs = n == 0;
+        int items = pairs ? (r.argCount() - 2) / 2 : n;
+        // argument holding the shared body, or the body of the last pair
+        int last = pairs ? 2 * items + 1 : n + 2;
+        if (items == 0 || r.argCount() <= last || pairs && r.argCount() != last + 1) {
+            throw new IllegalArgumentException("Malformed batch");
+        }
+        String body = pairs ? null : r.rest(last);
+
+        // every recipient is looked up once, before anything is sent
+        List<Account> receivers = new ArrayList<>(items);
+        List<String> bodies = new ArrayList<>(items);
+        String[] names = new String[items];
+        String[] status = new String[items];
+        for (int i = 0; i < items; i++) {
+            int arg = pairs ? 2 + 2 * i : 2 + i;
+            names[i] = r.string(arg);
+            Account receiver = accounts.getByUsername(names[i]);
+            String text = pairs ? r.string(arg + 1) : body;
+            if (receiver == null) {
+                status[i] = "User does not exist";
+            } else if (text.length() > MessageStore.MAX_BODY) {
+                status[i] = "Message too long";
+            } else {
+                receivers.add(receiver);
+                bodies.add(text);
+                status[i] = "OK";
             }
-            i++;
         }
-        return i;
-
+        store.sendAll(sender, receivers, bodies);
+        for (int i = 0; i < items; i++) {
+            out.item(names[i] + ": " + status[i]);
+        }
     }
-    private boolean removeMessage(int messageId,int authToken){
-        boolean deleted=false;
-        for (Account a : accounts) {
-            if (a.getAuthToken() != authToken) {
-                continue;
-            }
-            for (int i = 0; i < a.getSizeOfMassages(); i++) {
-                if (a.getMessage(i).getMessageID() == messageId) {
-                   a.deleteMessage(i);
-                   deleted=true;
-                    break;
 
+    // Op 9, either "<token> <mark> <n> <id 1> ... <id n>" for the listed messages or
+    // "<token> <mark> 0 <from id> <to id>" for the messages in that range. Writes
+    // "<id>. (<sender>)<body>" for every message found, and marks them read if
+    // mark is 1. A range reply holds at most MAX_BULK_READ messages and ends with
+    // "next <id>" when more may follow.
+    private void bulkRead(Account account, Request r, Reply out) throws IOException {
+        boolean markRead = r.intArg(1) != 0;
+        int n = r.intArg(2);
+        List<Message> found;
+        int nextId = -1;
+        if (n > 0) {
+            if (n > MAX_BULK_READ || r.argCount() != 3 + n) {
+                throw new IllegalArgumentException("Malformed bulk read");
+            }
+            int[] ids = new int[n];
+            for (int i = 0; i < n; i++) {
+                ids[i] = r.intArg(3 + i);
+            }
+            found = store.readAll(account, ids, markRead);
+        } else if (n == 0 && r.argCount() == 5) {
+            int to = r.intArg(4);
+            found = store.readRange(account, r.intArg(3), to, MAX_BULK_READ, markRead);
+            if (found.size() == MAX_BULK_READ) {
+                int last = found.get(found.size() - 1).getMessageID();
+                if (last < to) {
+                    nextId = last + 1;
                 }
             }
+        } else {
+            throw new IllegalArgumentException("Malformed bulk read");
+        }
+        for (Message m : found) {
+            out.item(m.getMessageID() + ". (" + m.getSender() + ")" + m.getBody());
+        }
+        if (nextId >= 0) {
+            out.item(NEXT_PAGE + nextId);
         }
-        return deleted;
-
-
     }
 
-    private String getMessageSend(String[] s1) {
-        String s = "";
-        for (int i = 5; i < s1.length; i++) {
-            s = s + s1[i] + " ";
-
+    // Op 14, "<token> <contact> <mark> <before id> <n>": up to n messages between
+    // the account and contact, both directions, with IDs below the given one
+    // (0 for the newest), newest first. Writes "<id>. (<sender>)<body>" for each,
+    // then "next <id>" to pass as before ID when older ones follow. With mark 1
+    // the messages the account received are marked read.
+    private void history(Account account, Account contact, Request r, Reply out) throws IOException {
+        boolean markRead = r.intArg(2) != 0;
+        int before = r.intArg(3);
+        int n = r.intArg(4);
+        if (before < 0 || n <= 0 || n > MAX_BULK_READ) {
+            throw new IllegalArgumentException("Malformed history request");
+        }
+        // one extra message tells whether another page follows
+        List<Message> page = store.history(account, contact, before == 0 ? Integer.MAX_VALUE : before, n + 1);
+        int count = Math.min(page.size(), n);
+        if (markRead) {
+            // only the received ones are in the account's mailbox; readAll skips the rest
+            int[] ids = new int[count];
+            for (int i = 0; i < count; i++) {
+                ids[i] = page.get(i).getMessageID();
+            }
+            store.readAll(account, ids, true);
+        }
+        for (int i = 0; i < count; i++) {
+            Message m = page.get(i);
+            out.item(m.getMessageID() + ". (" + m.getSender() + ")" + m.getBody());
         }
-        s = s.trim();
-        return s;
+        if (page.size() > n) {
+            out.item(NEXT_PAGE + page.get(n - 1).getMessageID());
+        }
+    }
 
+    // Op 15, "<token> <before id> <n> <query>": up to n messages of the account
+    // with IDs below the given one (0 for the newest) that have every word of
+    // the query, newest first. Writes "<id>. from: <sender>" for each, with "*"
+    // if unread as in op 4, then "next <id>" to pass as before ID when more follow.
+    private void search(Account account, Request r, Reply out) throws IOException {
+        int before = r.intArg(1);
+        int n = r.intArg(2);
+        String query = r.rest(3);
+        if (before < 0 || n <= 0 || n > MAX_BULK_READ || query.isEmpty()) {
+            throw new IllegalArgumentException("Malformed search");
+        }
+        // one extra message tells whether another page follows
+        List<Message> page = store.search(account, query, before == 0 ? Integer.MAX_VALUE : before, n + 1);
+        for (int i = 0; i < page.size() && i < n; i++) {
+            Message m = page.get(i);
+            out.item(m.getMessageID() + ". from: " + m.getSender() + (m.getIsRead() ? "" : "*"));
+        }
+        if (page.size() > n) {
+            out.item(NEXT_PAGE + page.get(n - 1).getMessageID());
+        }
     }
 
-    private String codeHandler(String[] s1) {
-        if (s1[2].equals("1")) {
-            if (!s1[3].matches("[a-zA-Z_0-9]+")) {
+    // Handles single-line replies by returning them; list replies are
+    // written item by item to out and null is returned
+    private String codeHandler(Request r, Reply out) throws IOException {
+        if (r.op() == 1) {
+            if (!r.isWord(0)) {
                 return "Invalid Username";
-            } else if (!CheckIfExistsUsername(s1[3])) {
-                currentAuthToken = createAuthToken();
-                while (checkIfTokenExist(currentAuthToken)) {
-                    currentAuthToken = createAuthToken();
+            }
+            String username = r.string(0);
+            if (!CheckIfExistsUsername(username)) {
+                long token = store.register(new Account(username));
+                if (token != 0) {
+                    return String.valueOf(token);
                 }
-                Account a = new Account(s1[3], currentAuthToken);
-                accounts.add(a);
-                return String.valueOf(currentAuthToken);
-
-            } else if (CheckIfExistsUsername(s1[3])) {
-                return "Sorry, the user already exists";
-
             }
-        } else if (s1[2].equals("2")) {
-            int i = 1;
-            String s = "";
-            if (!checkIfTokenExist(Integer.parseInt(s1[3]))) {
+            return "Sorry, the user already exists";
+
+        } else if (r.op() == 2) {
+            if (!checkIfTokenExist(r.number(0))) {
                 return "Invalid Auth Token";
             }
-            for (Account a : accounts) {
-                s = s + i + ". " + a.getUsername() + "/n";
-                i++;
+            int size = accounts.size();
+            int offset = pageArg(r, 1, 0);
+            int end = (int) Math.min((long) offset + pageArg(r, 2, size), size);
+            for (int j = offset; j < end; j++) {
+                out.item((j + 1) + ". " + accounts.get(j).getUsername());
             }
-            return s;
+            if (r.argCount() > 2 && end < size) {
+                out.item(NEXT_PAGE + end);
+            }
+            return null;
 
-        } else if (s1[2].equals("3")) {
-            if (!checkIfTokenExist(Integer.parseInt(s1[3]))) {
+        } else if (r.op() == 3) {
+            Account sender = accounts.getByToken(r.number(0));
+            if (sender == null) {
                 return "Invalid Auth Token";
 
             }
-            if (!CheckIfExistsUsername(s1[4])) {
+            Account receiver = accounts.getByUsername(r.string(1));
+            if (receiver == null) {
                 return "User does not exist";
 
-            } else {
-                messagesId++;
-                Message massage = new Message(returnUsernameOfToken(Integer.parseInt(s1[3])), s1[4], getMessageSend(s1), false, messagesId);
-                int index = getIndexOfUsername(s1[4]);
-                accounts.get(index).addMessage(massage);
-                return "OK";
-
             }
+            String body = r.rest(2);
+            if (body.length() > MessageStore.MAX_BODY) {
+                return "Message too long";
+            }
+            store.send(sender, receiver, body);
+            return "OK";
 
-        } else if (s1[2].equals("4")) {
-            if (!checkIfTokenExist(Integer.parseInt(s1[3]))) {
+        } else if (r.op() == 4) {
+            Account account = accounts.getByToken(r.number(0));
+            if (account == null) {
                 return "Invalid Auth Token";
 
             }
-            int index = getIndexOfToken(Integer.parseInt(s1[3]));
-            int i = 0;
-            String s = "";
-            int size = accounts.get(index).getSizeOfMassages();
-            while (i < size) {
-                if (!accounts.get(index).getMessage(i).getIsRead()) {
-                    s = s + accounts.get(index).getMessage(i).getMessageID() + ". " + "from: " + accounts.get(index).getMessage(i).getSender() + "*" + "/n";
+            int offset = pageArg(r, 1, 0);
+            int limit = Math.min(pageArg(r, 2, Integer.MAX_VALUE), Integer.MAX_VALUE - 1);
+            // one extra message tells whether another page follows
+            List<Message> page = store.mailbox(account, offset, limit + 1);
+            for (int j = 0; j < page.size() && j < limit; j++) {
+                Message m = page.get(j);
+                if (!m.getIsRead()) {
+                    out.item(m.getMessageID() + ". " + "from: " + m.getSender() + "*");
                 } else {
-                    s = s + accounts.get(index).getMessage(i).getMessageID() + ". " + "from: " + accounts.get(index).getMessage(i).getSender() + "/n";
+                    out.item(m.getMessageID() + ". " + "from: " + m.getSender());
                 }
 
-
-                i++;
-
             }
-            return s;
+            if (page.size() > limit) {
+                out.item(NEXT_PAGE + (offset + limit));
+            }
+            return null;
 
-        } else if (s1[2].equals("5")) {
-            if (!checkIfTokenExist(Integer.parseInt(s1[3]))) {
+        } else if (r.op() == 5) {
+            long token = r.number(0);
+            if (!checkIfTokenExist(token)) {
                 return "Invalid Auth Token";
 
             } else {
 
-                if (getMessageFromIndex(Integer.parseInt(s1[4]), Integer.parseInt(s1[3])).equals("-1")) {
+                String messBody = getMessageFromIndex(r.intArg(1), token);
+                if (messBody.equals("-1")) {
                     return "Message ID does not exist";
 
                 } else
-                    return getMessageFromIndex(Integer.parseInt(s1[4]), Integer.parseInt(s1[3]));
+                    return messBody;
 
             }
-        } else if (s1[2].equals("6")) {
-            if (!checkIfTokenExist(Integer.parseInt(s1[3]))) {
+        } else if (r.op() == 6) {
+            long token = r.number(0);
+            if (!checkIfTokenExist(token)) {
                 return "Invalid Auth Token";
             }else{
-                if (getMessageFromIndex(Integer.parseInt(s1[4]), Integer.parseInt(s1[3])).equals("-1")){
-                    return "Message does not exist";
+                if(removeMessage(r.intArg(1),token)){
+                    return "OK";
                 }else
                 {
-                    if(removeMessage(Integer.parseInt(s1[4]),Integer.parseInt(s1[3]))){
-                        return "OK";
-                    }
+                    return "Message does not exist";
                 }
             }
 
 
+        } else if (r.op() == 7) {
+            Account account = accounts.getByToken(r.number(0));
+            if (account == null) {
+                return "Invalid Auth Token";
+            }
+            if (subscriber == null) {
+                return "Push not supported";
+            }
+            if (!subscribedTo.contains(account.getUsername())) {
+                store.getSubscriptions().subscribe(account.getUsername(), subscriber);
+                subscribedTo.add(account.getUsername());
+            }
+            return "OK";
+
+        } else if (r.op() == 8) {
+            Account sender = accounts.getByToken(r.number(0));
+            if (sender == null) {
+                return "Invalid Auth Token";
+            }
+            sendBatch(sender, r, out);
+            return null;
+
+        } else if (r.op() == 9) {
+            Account account = accounts.getByToken(r.number(0));
+            if (account == null) {
+                return "Invalid Auth Token";
+            }
+            bulkRead(account, r, out);
+            return null;
+
+        } else if (r.op() == 10) {
+            Account account = accounts.getByToken(r.number(0));
+            if (account == null) {
+                return "Invalid Auth Token";
+            }
+            // from the account's running counters, without walking the mailbox
+            Map<String, Integer> bySender = account.getUnreadBySender();
+            int total = 0;
+            for (int n : bySender.values()) {
+                total += n;
+            }
+            out.item("unread " + total);
+            for (Map.Entry<String, Integer> e : bySender.entrySet()) {
+                out.item(e.getKey() + ": " + e.getValue());
+            }
+            return null;
+
+        } else if (r.op() == 11) {
+            if (!metrics.isScrapeKey(r.string(0))) {
+                return "Invalid admin key";
+            }
+            for (String line : metrics.report()) {
+                out.item(line);
+            }
+            return null;
+
+        } else if (r.op() == 12) {
+            Account account = accounts.getByToken(r.number(0));
+            if (account == null) {
+                return "Invalid Auth Token";
+            }
+            return String.valueOf(store.openSession(account));
+
+        } else if (r.op() == 13) {
+            long token = r.number(0);
+            Account account = accounts.getByToken(token);
+            if (account == null) {
+                return "Invalid Auth Token";
+            }
+            if (!store.closeSession(token)) {
+                return "Cannot end the last session";
+            }
+            // pushes this connection subscribed to stop with the session
+            if (subscribedTo.remove(account.getUsername())) {
+                store.getSubscriptions().unsubscribe(account.getUsername(), subscriber);
+            }
+            return "OK";
+
+        } else if (r.op() == 14) {
+            Account account = accounts.getByToken(r.number(0));
+            if (account == null) {
+                return "Invalid Auth Token";
+            }
+            Account contact = accounts.getByUsername(r.string(1));
+            if (contact == null) {
+                return "User does not exist";
             }
+            history(account, contact, r, out);
+            return null;
 
+        } else if (r.op() == 15) {
+            Account account = accounts.getByToken(r.number(0));
+            if (account == null) {
+                return "Invalid Auth Token";
+            }
+            if (!store.isSearchEnabled()) {
+                return "Search not enabled";
+            }
+            if (!SearchIndex.searchable(r.rest(3))) {
+                return "Search words need 2 or more letters or digits";
+            }
+            search(account, r, out);
+            return null;
+        }
 
-        return null;
+
+        return "Unknown operation";
     }
 
 
     // Constructor
-    public ClientHandler(Socket socket, ArrayList<Account> acc) {
+    public ClientHandler(Socket socket, MessageStore store) {
         this.clientSocket = socket;
-        this.accounts = acc;
+        this.store = store;
+        this.accounts = store.getAccounts();
+        this.metrics = store.getMetrics();
 
     }
 
-    public void run() {
-        PrintWriter out = null;
-        BufferedReader in = null;
-        try {
+    // Constructor for connections driven by NioServer, which reads the socket itself
+    public ClientHandler(MessageStore store) {
+        this(null, store);
+    }
 
-            // get the outputstream of client
-            out = new PrintWriter(
-                    clientSocket.getOutputStream(), true);
+    // Sets how messages are pushed to this connection once it subscribes (op 7)
+    void setSubscriber(Subscriptions.Subscriber subscriber) {
+        this.subscriber = subscriber;
+    }
 
-            // get the inputstream of client
-            in = new BufferedReader(
-                    new InputStreamReader(
-                            clientSocket.getInputStream()));
+    // Stops pushes to this connection; called when it closes
+    void close() {
+        for (String username : subscribedTo) {
+            store.getSubscriptions().unsubscribe(username, subscriber);
+        }
+        subscribedTo.clear();
+    }
+
+    // Handles one request and writes its reply
+    public void handle(Request r, Reply out) throws IOException {
+        long start = System.nanoTime();
+        out.begin(r.id());
+        String s;
+        try {
+            s = codeHandler(r, out);
+        } catch (IllegalArgumentException | ArithmeticException e) {
+            s = "Invalid request";
+        } catch (IllegalStateException e) {
+            // storage failed (write-ahead log or body segment); the change may be lost
+            e.printStackTrace();
+            s = "Internal error";
+        }
+        if (s != null) {
+            out.text(s);
+        }
+        out.end();
+        metrics.request(r.op(), System.nanoTime() - start, s != null && ERROR_REPLIES.contains(s) ? s : null);
+    }
 
-            String line;
+    // Handles one text request line and returns the response line
+    public String handle(String line) {
+        StringWriter reply = new StringWriter();
+        try {
+            request.parseText(line);
+            handle(request, new Reply.TextReply(reply));
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return reply.toString().trim();
+    }
 
-            while ((line = in.readLine()) != null) {
+    public void run() {
+        OutputStream out = null;
+        InputStream in = null;
+        try {
+            // replies and pushes are flushed whole, so Nagle would only make a
+            // push written right after a reply wait for the client's delayed ACK
+            clientSocket.setTcpNoDelay(true);
 
-                String s1[] = line.split(" ");
+            // get the outputstream of client
+            out = new BufferedOutputStream(metrics.countOut(clientSocket.getOutputStream()));
 
-                out.println(codeHandler(s1));
+            // get the inputstream of client
+            in = new BufferedInputStream(metrics.countIn(clientSocket.getInputStream()));
+
+            // binary clients announce themselves with BinaryProtocol.MAGIC
+            in.mark(1);
+            int first = in.read();
+            if (first == BinaryProtocol.MAGIC[0]) {
+                BinaryProtocol.readMagic(in, 1);
+                out.write(BinaryProtocol.MAGIC);
+                out.flush();
+                // each frame of a reply is written under the stream's lock, between pushes
+                Reply reply = new Reply.BinaryReply(out);
+                setSubscriber(new PushWriter(clientSocket, out, true));
+                BinaryProtocol.Frame frame = new BinaryProtocol.Frame();
+                while (frame.read(in)) {
+                    request.parseBinary(frame.data, 0, frame.length);
+                    handle(request, reply);
+                }
+            } else if (first >= 0) {
+                in.reset();
+                LineReader lines = new LineReader(new InputStreamReader(in));
+                Reply reply = new Reply.TextReply(new BufferedWriter(new OutputStreamWriter(out)));
+                setSubscriber(new PushWriter(clientSocket, out, false));
+
+                int length;
+
+                while ((length = lines.readLine()) >= 0) {
+
+                    request.parseText(lines.chars, length);
+                    // a text reply is one line, so pushes wait until all of it
+                    // is written. This thread takes no other connection's lock
+                    // (pushes to them are only queued), so holding it cannot deadlock.
+                    synchronized (out) {
+                        handle(request, reply);
+                    }
 
 
+                }
             }
         } catch (IOException e) {
+            metrics.connectionError();
             e.printStackTrace();
         } finally {
+            close();
             try {
                 if (out != null) {
                     out.close();
@@ -276,4 +570,153 @@ public class ClientHandler implements Runnable {
             }
         }
     }
+
+    // Pushes to a blocking connection. The sender's thread only queues the
+    // event; a small shared pool writes it under the stream's lock, so an event
+    // never lands inside a reply and a slow receiver never holds up a sender. A
+    // connection that falls MAX_PENDING events behind loses its subscriptions,
+    // and one whose client takes more than WRITE_TIMEOUT_MS to accept a write
+    // is closed, so that it does not keep a writer thread.
+    private static class PushWriter implements Subscriptions.Subscriber {
+        private static final int MAX_PENDING = 1024;
+        private static final long WRITE_TIMEOUT_MS = 5000;
+        private static final ExecutorService WRITERS = Executors.newFixedThreadPool(
+                Math.max(2, Runtime.getRuntime().availableProcessors()), r -> {
+                    Thread t = new Thread(r, "push-writer");
+                    t.setDaemon(true);
+                    return t;
+                });
+        // writers in the middle of a write, checked by the watchdog
+        private static final Set<PushWriter> WRITING = ConcurrentHashMap.newKeySet();
+
+        static {
+            Thread watchdog = new Thread(() -> {
+                while (true) {
+                    try {
+                        Thread.sleep(WRITE_TIMEOUT_MS / 5);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    long now = System.nanoTime();
+                    for (PushWriter w : WRITING) {
+                        if (now - w.writingSince > WRITE_TIMEOUT_MS * 1_000_000) {
+                            w.abort();
+                        }
+                    }
+                }
+            }, "push-watchdog");
+            watchdog.setDaemon(true);
+            watchdog.start();
+        }
+
+        private final Socket socket;
+        private final OutputStream out;
+        private final boolean binary;
+        private final Queue<byte[]> events = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger pending = new AtomicInteger();
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        private volatile boolean broken;
+        private volatile long writingSince;
+
+        PushWriter(Socket socket, OutputStream out, boolean binary) {
+            this.socket = socket;
+            this.out = out;
+            this.binary = binary;
+        }
+
+        public void deliver(Message m) {
+            if (broken) {
+                throw new IllegalStateException("Connection closed");
+            }
+            if (pending.incrementAndGet() > MAX_PENDING) {
+                pending.decrementAndGet();
+                throw new IllegalStateException("Too many pushes pending");
+            }
+            events.add(Reply.encodePush(binary, m));
+            if (scheduled.compareAndSet(false, true)) {
+                WRITERS.execute(this::drain);
+            }
+        }
+
+        private void drain() {
+            do {
+                // timed from before the lock: a reply stuck on the same client holds it
+                writingSince = System.nanoTime();
+                WRITING.add(this);
+                try {
+                    synchronized (out) {
+                        byte[] event;
+                        while ((event = events.poll()) != null) {
+                            pending.decrementAndGet();
+                            out.write(event);
+                        }
+                        out.flush();
+                    }
+                } catch (IOException e) {
+                    broken = true;
+                    events.clear();
+                } finally {
+                    WRITING.remove(this);
+                }
+                scheduled.set(false);
+                // an event queued after the last poll but before the flag was cleared
+            } while (!events.isEmpty() && scheduled.compareAndSet(false, true));
+        }
+
+        // Closing the socket fails the stuck write, and the connection's own
+        // thread then ends the connection and its subscriptions
+        private void abort() {
+            broken = true;
+            try {
+                socket.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    // Like BufferedReader.readLine, but fills one reused char array instead of creating a String
+    private static class LineReader {
+        // room for a request with a body of MessageStore.MAX_BODY chars
+        private static final int MAX_LINE = 4 * MessageStore.MAX_BODY;
+        private final Reader in;
+        private final char[] buf = new char[8192];
+        private int pos;
+        private int limit;
+        char[] chars = new char[256];
+
+        LineReader(Reader in) {
+            this.in = in;
+        }
+
+        // returns the length of the next line in chars, or -1 at end of stream;
+        // a line longer than MAX_LINE throws, which ends the connection
+        int readLine() throws IOException {
+            int length = 0;
+            while (true) {
+                if (pos == limit) {
+                    limit = in.read(buf, 0, buf.length);
+                    pos = 0;
+                    if (limit <= 0) {
+                        limit = 0;
+                        return length > 0 ? length : -1;
+                    }
+                }
+                char c = buf[pos++];
+                if (c == '\n') {
+                    if (length > 0 && chars[length - 1] == '\r') {
+                        length--;
+                    }
+                    return length;
+                }
+                if (length == chars.length) {
+                    if (length >= MAX_LINE) {
+                        throw new IOException("Line too long");
+                    }
+                    chars = Arrays.copyOf(chars, Math.min(length * 2, MAX_LINE));
+                }
+                chars[length++] = c;
+            }
+        }
+    }
 }
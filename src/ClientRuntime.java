@@ -0,0 +1,116 @@
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+// Threads of a GUI client, so UI actions never start threads of their own.
+//
+// - one I/O thread writes every request to the socket (replies are read by
+//   the connection's reader thread)
+// - a small bounded worker pool runs tasks that wait, such as fetching every
+//   page of a list; when it is full, new tasks fail instead of queueing forever
+// - a task submitted with a key while another with that key is still running
+//   is dropped, so repeated refreshes cost one request
+// - results are handed to the UI thread in batches: one UI event runs
+//   everything that finished since the last one
+public class ClientRuntime {
+    private static final int WORKERS = 2;
+    private static final int MAX_QUEUED = 16;
+
+    private final Executor uiThread;
+    private final ExecutorService io = Executors.newSingleThreadExecutor(daemon("client-io"));
+    private final ThreadPoolExecutor workers = new ThreadPoolExecutor(WORKERS, WORKERS, 0, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(MAX_QUEUED), daemon("client-worker"));
+    private final Map<String, CompletableFuture<?>> running = new ConcurrentHashMap<>();
+    private final Queue<Runnable> uiQueue = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean uiScheduled = new AtomicBoolean();
+
+    // uiThread runs a task on the UI thread, e.g. SwingUtilities::invokeLater
+    public ClientRuntime(Executor uiThread) {
+        this.uiThread = uiThread;
+    }
+
+    // Makes the connection write its requests on the I/O thread
+    public void attach(ClientConnection connection) {
+        connection.setWriter(io);
+    }
+
+    // Runs task on a worker and hands its result or failure to onUi on the UI
+    // thread. If a task with the same key is still running, this one is dropped
+    // and the running one is returned; a null key is never coalesced.
+    public <T> CompletableFuture<T> submit(String key, Callable<T> task, BiConsumer<T, Throwable> onUi) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        if (key != null) {
+            @SuppressWarnings("unchecked")
+            CompletableFuture<T> other = (CompletableFuture<T>) running.putIfAbsent(key, result);
+            if (other != null) {
+                return other;
+            }
+        }
+        result.whenComplete((value, e) -> {
+            if (key != null) {
+                running.remove(key, result);
+            }
+            ui(() -> onUi.accept(value, e));
+        });
+        try {
+            workers.execute(() -> {
+                try {
+                    result.complete(task.call());
+                } catch (Throwable e) {
+                    result.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
+    // Runs r on the UI thread together with everything else queued meanwhile
+    public void ui(Runnable r) {
+        uiQueue.add(r);
+        if (uiScheduled.compareAndSet(false, true)) {
+            uiThread.execute(this::runUiBatch);
+        }
+    }
+
+    private void runUiBatch() {
+        uiScheduled.set(false);
+        Runnable r;
+        while ((r = uiQueue.poll()) != null) {
+            try {
+                r.run();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    public void shutdown() {
+        workers.shutdownNow();
+        io.shutdownNow();
+    }
+
+    private static ThreadFactory daemon(String name) {
+        AtomicInteger count = new AtomicInteger();
+        return r -> {
+            Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+}
@@ -0,0 +1,113 @@
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// IDs of the messages between each pair of users, both directions in ID
+// order, so one conversation can be paged without walking either mailbox. A
+// message itself stays in its receiver's mailbox; MessageStore adds and
+// removes IDs here together with the mailbox.
+public class Conversations {
+    private static final int[] NONE = new int[0];
+
+    // keyed by the two account IDs, the lower one in the high half
+    private final Map<Long, Conversation> byPair = new ConcurrentHashMap<>();
+
+    private static long key(Account a, Account b) {
+        int lo = Math.min(a.getId(), b.getId());
+        int hi = Math.max(a.getId(), b.getId());
+        return (long) lo << 32 | hi;
+    }
+
+    public void add(Account sender, Account receiver, int messageId) {
+        byPair.computeIfAbsent(key(sender, receiver), k -> new Conversation()).add(messageId);
+    }
+
+    // Adds an ID out of order while a snapshot is loaded; sortAll() puts
+    // every conversation in order afterwards
+    void load(Account sender, Account receiver, int messageId) {
+        byPair.computeIfAbsent(key(sender, receiver), k -> new Conversation()).append(messageId);
+    }
+
+    void sortAll() {
+        byPair.values().parallelStream().forEach(Conversation::sort);
+    }
+
+    public void remove(Account sender, Account receiver, int messageId) {
+        Conversation c = byPair.get(key(sender, receiver));
+        if (c != null) {
+            c.remove(messageId);
+        }
+    }
+
+    // IDs of up to limit messages between a and b below beforeId, newest first
+    public int[] before(Account a, Account b, int beforeId, int limit) {
+        Conversation c = byPair.get(key(a, b));
+        if (c == null) {
+            return NONE;
+        }
+        return c.before(beforeId, limit);
+    }
+
+    private static class Conversation {
+        private int[] ids = new int[4];
+        private int size;
+
+        synchronized void add(int messageId) {
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+            }
+            // IDs are taken under the receiver's lock, so a message the other
+            // way can get here first; it is at most a few places back
+            int i = size;
+            while (i > 0 && ids[i - 1] > messageId) {
+                ids[i] = ids[i - 1];
+                i--;
+            }
+            ids[i] = messageId;
+            size++;
+        }
+
+        synchronized void append(int messageId) {
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+            }
+            ids[size++] = messageId;
+        }
+
+        synchronized void sort() {
+            Arrays.sort(ids, 0, size);
+        }
+
+        synchronized void remove(int messageId) {
+            int i = lowerBound(messageId);
+            if (i < size && ids[i] == messageId) {
+                System.arraycopy(ids, i + 1, ids, i, size - i - 1);
+                size--;
+            }
+        }
+
+        synchronized int[] before(int beforeId, int limit) {
+            int end = lowerBound(beforeId);
+            int[] page = new int[Math.max(0, Math.min(limit, end))];
+            for (int i = 0; i < page.length; i++) {
+                page[i] = ids[end - 1 - i];
+            }
+            return page;
+        }
+
+        // index of the first message with an ID of at least messageId
+        private int lowerBound(int messageId) {
+            int lo = 0;
+            int hi = size;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (ids[mid] < messageId) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            return lo;
+        }
+    }
+}
@@ -0,0 +1,231 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+// Load generator: many simulated users, each with its own connection, that
+// register and then send a mix of requests at a fixed total rate.
+//
+// Every user has a schedule of when its requests are due. Latency is measured
+// from the time a request was due, not from when it was sent, so a server
+// stall also counts against the requests that queued up behind it
+// (correcting for coordinated omission). The time from sending to the reply
+// is reported separately as service time.
+//
+// Run: java Client --load <host> <port> [--users=100] [--rate=1000] [--duration=30]
+//      [--warmup=5] [--mix=list:1,send:4,check:3,read:2]
+class LoadGenerator {
+    private static final int PAGE_SIZE = 100;
+    private static final String[] OPS = {"list", "send", "check", "read"};
+
+    private final String host;
+    private final int port;
+    private final int users;
+    private final double rate;
+    private final long durationNanos;
+    private final long warmupNanos;
+    private final int[] mix = new int[OPS.length];
+    private final Map<String, OpStats> stats = new LinkedHashMap<>();
+    // when the last measured reply arrived; a slow server finishes after the schedule does
+    private final LongAccumulator lastDone = new LongAccumulator(Math::max, 0);
+    private final String prefix = "load" + Long.toString(System.nanoTime() % 1_000_000_000L, 36) + "_";
+
+    // Latency from due time and from send time, and failed requests, of one operation
+    private static class OpStats {
+        final LatencyHistogram latency = new LatencyHistogram();
+        final LatencyHistogram service = new LatencyHistogram();
+        final LongAdder errors = new LongAdder();
+    }
+
+    LoadGenerator(String host, ServerConfig config) {
+        this.host = host;
+        this.port = config.getPort();
+        this.users = config.getInt("users", 100);
+        this.rate = Double.parseDouble(config.get("rate", "1000"));
+        this.durationNanos = config.getInt("duration", 30) * 1_000_000_000L;
+        this.warmupNanos = config.getInt("warmup", 5) * 1_000_000_000L;
+        for (String part : config.get("mix", "list:1,send:4,check:3,read:2").split(",")) {
+            String[] kv = part.split(":");
+            int op = Arrays.asList(OPS).indexOf(kv[0]);
+            if (op < 0) {
+                throw new IllegalArgumentException("Unknown operation in mix: " + kv[0]);
+            }
+            mix[op] = Integer.parseInt(kv[1]);
+        }
+        for (String op : OPS) {
+            stats.put(op, new OpStats());
+        }
+    }
+
+    // args: <host> <port> [--name=value ...]
+    public static void main(String[] args) throws InterruptedException {
+        ServerConfig config = new ServerConfig(Arrays.copyOfRange(args, 1, args.length));
+        new LoadGenerator(args[0], config).run();
+    }
+
+    void run() throws InterruptedException {
+        // each user's requests are due every interval, offset so users do not fire together
+        long interval = (long) (users * 1e9 / rate);
+        CountDownLatch registered = new CountDownLatch(users);
+        AtomicInteger failed = new AtomicInteger();
+        long[] start = new long[1];
+        CountDownLatch go = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < users; i++) {
+            int user = i;
+            Thread t = new Thread(() -> {
+                User u;
+                try {
+                    u = new User(user);
+                } catch (IOException e) {
+                    System.err.println("user " + user + ": " + e);
+                    failed.incrementAndGet();
+                    registered.countDown();
+                    return;
+                }
+                registered.countDown();
+                try (User running = u) {
+                    go.await();
+                    running.run(start[0] + interval * user / users, interval);
+                } catch (IOException | InterruptedException e) {
+                    System.err.println("user " + user + ": " + e);
+                }
+            }, "load-user-" + i);
+            threads.add(t);
+            t.start();
+        }
+        registered.await();
+        System.out.printf("%d users registered, running at %.0f requests/s for %ds after %ds of warmup%n",
+                users - failed.get(), rate, durationNanos / 1_000_000_000L, warmupNanos / 1_000_000_000L);
+        start[0] = System.nanoTime();
+        go.countDown();
+        for (Thread t : threads) {
+            t.join();
+        }
+        report(start[0] + warmupNanos);
+    }
+
+    private void report(long measureStart) {
+        double seconds = (lastDone.get() - measureStart) / 1e9;
+        long requests = 0;
+        System.out.printf("%-6s %9s %7s %10s %10s %10s %10s %10s%n",
+                "op", "requests", "errors", "p50 ms", "p99 ms", "p99.9 ms", "max ms", "svc p99 ms");
+        for (Map.Entry<String, OpStats> e : stats.entrySet()) {
+            OpStats s = e.getValue();
+            requests += s.latency.count();
+            System.out.printf("%-6s %9d %7d %10.3f %10.3f %10.3f %10.3f %10.3f%n", e.getKey(),
+                    s.latency.count(), s.errors.sum(), ms(s.latency.percentile(50)), ms(s.latency.percentile(99)),
+                    ms(s.latency.percentile(99.9)), ms(s.latency.max()), ms(s.service.percentile(99)));
+        }
+        System.out.printf("achieved %.0f requests/s of %.0f%n", requests / seconds, rate);
+    }
+
+    private static double ms(long nanos) {
+        return nanos / 1e6;
+    }
+
+    // One simulated user and its connection
+    private class User implements AutoCloseable {
+        private final ClientConnection connection;
+        private final long token;
+        private final Random random;
+        // IDs seen in the last mailbox page, for reads
+        private final List<Integer> seen = new ArrayList<>();
+
+        User(int index) throws IOException {
+            random = new Random(index);
+            connection = new ClientConnection(host, port);
+            List<String> reply = connection.request(1, prefix + index);
+            if (isError(reply)) {
+                // such as "Server busy" when the server is at its connection limit
+                connection.disconnect();
+                throw new IOException(reply.get(0));
+            }
+            token = Long.parseLong(reply.get(0));
+        }
+
+        void run(long firstDue, long interval) throws IOException {
+            long measureFrom = firstDue + warmupNanos;
+            long end = measureFrom + durationNanos;
+            for (long due = firstDue; due < end; due += interval) {
+                long wait = due - System.nanoTime();
+                if (wait > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+                String op = pick();
+                long sent = System.nanoTime();
+                boolean ok = call(op);
+                long done = System.nanoTime();
+                if (due >= measureFrom) {
+                    OpStats s = stats.get(op);
+                    s.latency.record(done - due);
+                    s.service.record(done - sent);
+                    lastDone.accumulate(done);
+                    if (!ok) {
+                        s.errors.increment();
+                    }
+                }
+            }
+        }
+
+        private String pick() {
+            int total = 0;
+            for (int weight : mix) {
+                total += weight;
+            }
+            int r = random.nextInt(total);
+            for (int i = 0; i < mix.length; i++) {
+                r -= mix[i];
+                if (r < 0) {
+                    // nothing to read yet: look at the mailbox instead
+                    return OPS[i].equals("read") && seen.isEmpty() ? "check" : OPS[i];
+                }
+            }
+            throw new IllegalStateException();
+        }
+
+        // returns false if the server answered with an error
+        private boolean call(String op) throws IOException {
+            switch (op) {
+                case "list":
+                    return !isError(connection.request(2, token, random.nextInt(Math.max(1, users - PAGE_SIZE)), PAGE_SIZE));
+                case "send":
+                    return !isError(connection.request(3, token, prefix + random.nextInt(users), "load test message"));
+                case "check": {
+                    List<String> page = connection.request(4, token, 0, PAGE_SIZE);
+                    seen.clear();
+                    for (String entry : page) {
+                        int dot = entry.indexOf(". ");
+                        if (dot > 0 && !entry.startsWith(ClientHandler.NEXT_PAGE)) {
+                            seen.add(Integer.parseInt(entry.substring(0, dot)));
+                        }
+                    }
+                    return !isError(page);
+                }
+                default:
+                    return !isError(connection.request(5, token, seen.get(random.nextInt(seen.size()))));
+            }
+        }
+
+        private boolean isError(List<String> reply) {
+            if (reply.size() != 1) {
+                return false;
+            }
+            String s = reply.get(0);
+            return s.startsWith("Invalid") || s.equals("User does not exist") || s.equals("Unknown operation")
+                    || s.equals("Message ID does not exist") || s.equals("Server busy");
+        }
+
+        public void close() throws IOException {
+            connection.disconnect();
+        }
+    }
+}
@@ -1,6 +1,7 @@
 import javax.swing.*;
 import java.awt.*;
 import java.awt.event.*;
+import java.util.List;
 
 public class LoginFrame extends JFrame {
     private JTextField hostField;
@@ -133,42 +134,57 @@ public class LoginFrame extends JFrame {
         loginButton.setEnabled(false);
         statusLabel.setText("Connecting...");
         
-        new Thread(() -> {
-            try {
-                int port = Integer.parseInt(portStr);
-                ClientConnection clientConnection = new ClientConnection(host, port);
-                
-                // Send login command: host port 1 username
-                String loginCommand = host + " " + port + " 1 " + username;
-                clientConnection.sendMessage(loginCommand);
-                
-                String response = clientConnection.receiveMessage();
-                
-                if (response != null && !response.isEmpty() && !response.contains("Invalid") && !response.contains("Sorry")) {
-                    // Login successful - response is auth token
-                    String authToken = response.trim();
-                    SwingUtilities.invokeLater(() -> {
-                        ChatFrame chatFrame = new ChatFrame(clientConnection, username, authToken);
-                        chatFrame.setVisible(true);
-                        LoginFrame.this.dispose();
-                    });
-                } else {
-                    SwingUtilities.invokeLater(() -> {
-                        statusLabel.setText("Login failed: " + (response != null ? response : "No response"));
-                        loginButton.setEnabled(true);
-                    });
-                }
-            } catch (NumberFormatException ex) {
-                SwingUtilities.invokeLater(() -> {
-                    statusLabel.setText("Invalid port number");
-                    loginButton.setEnabled(true);
-                });
-            } catch (Exception ex) {
-                SwingUtilities.invokeLater(() -> {
-                    statusLabel.setText("Connection failed: " + ex.getMessage());
-                    loginButton.setEnabled(true);
-                });
+        ClientRuntime runtime = new ClientRuntime(SwingUtilities::invokeLater);
+        runtime.submit(null, () -> {
+            int port = Integer.parseInt(portStr);
+            ClientConnection clientConnection = new ClientConnection(host, port);
+            runtime.attach(clientConnection);
+            
+            // Send login command: operation 1 with the username
+            List<String> reply = clientConnection.request(1, username);
+            String response = reply.isEmpty() ? null : reply.get(0);
+            
+            if (isToken(response)) {
+                // Login successful - response is auth token
+                String authToken = response.trim();
+                return (Runnable) () -> {
+                    ChatFrame chatFrame = new ChatFrame(runtime, clientConnection, username, authToken);
+                    chatFrame.setVisible(true);
+                    LoginFrame.this.dispose();
+                };
             }
-        }).start();
+            clientConnection.disconnect();
+            return (Runnable) () -> {
+                statusLabel.setText("Login failed: " + (response != null ? response : "No response"));
+                loginButton.setEnabled(true);
+                runtime.shutdown();
+            };
+        }, (next, e) -> {
+            if (e == null) {
+                next.run();
+                return;
+            }
+            if (e instanceof NumberFormatException) {
+                statusLabel.setText("Invalid port number");
+            } else {
+                statusLabel.setText("Connection failed: " + e.getMessage());
+            }
+            loginButton.setEnabled(true);
+            runtime.shutdown();
+        });
+    }
+
+    // A login reply is the session token; anything else, such as "Server busy"
+    // or "Internal error", is a message to show instead
+    private static boolean isToken(String response) {
+        if (response == null) {
+            return false;
+        }
+        try {
+            Long.parseLong(response.trim());
+            return true;
+        } catch (NumberFormatException e) {
+            return false;
+        }
     }
 }
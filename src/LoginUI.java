@@ -6,6 +6,8 @@ import javafx.scene.layout.VBox;
 import javafx.scene.layout.HBox;
 import javafx.stage.Stage;
 
+import java.util.List;
+
 public class LoginUI {
     private Stage stage;
     private ClientConnection clientConnection;
@@ -98,18 +100,16 @@ public class LoginUI {
                 int port = Integer.parseInt(portStr);
                 clientConnection = new ClientConnection(host, port);
                 
-                // Send login command: username password 1
-                String loginCommand = username + " " + password + " 1";
-                clientConnection.sendMessage(loginCommand);
-                
-                String response = clientConnection.receiveMessage();
+                // Send login command: operation 1 with the username
+                List<String> reply = clientConnection.request(1, username);
+                String response = reply == null || reply.isEmpty() ? null : reply.get(0);
                 
-                if (response != null && !response.isEmpty()) {
-                    // Login successful
-                    ChatUI chatUI = new ChatUI(clientConnection, username);
+                if (isToken(response)) {
+                    // Login successful - response is auth token
+                    ChatUI chatUI = new ChatUI(clientConnection, username, response.trim());
                     chatUI.show(stage);
                 } else {
-                    statusLabel.setText("Login failed: No response from server");
+                    statusLabel.setText("Login failed: " + (response != null ? response : "No response"));
                     loginButton.setDisable(false);
                 }
             } catch (NumberFormatException ex) {
@@ -151,4 +151,18 @@ public class LoginUI {
         
         return section;
     }
+    
+    // A login reply is the session token; anything else, such as "Server busy"
+    // or "Internal error", is a message to show instead
+    private static boolean isToken(String response) {
+        if (response == null) {
+            return false;
+        }
+        try {
+            Long.parseLong(response.trim());
+            return true;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
 }
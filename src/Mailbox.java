@@ -0,0 +1,292 @@
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// One account's messages in parallel arrays instead of an object each: a slot
+// per message, in arrival order. IDs are taken under the receiver's lock, so
+// arrival order is ID order too and an ID is found by binary search. The
+// sender is an account ID, and read and deleted are bits. A deleted slot is
+// only marked, and deleted slots are squeezed out once they make up half the
+// mailbox. A body may be kept compressed, on the heap or in bodyStore. Not
+// thread-safe; Account guards it with its lock.
+class Mailbox {
+    private static final int[] NO_INTS = new int[0];
+    private static final long[] NO_LONGS = new long[0];
+
+    private int[] ids = NO_INTS;
+    private int[] senders = NO_INTS;
+    // bodies on the heap, as a String or compressed bytes, or handles into
+    // bodyStore; the unused column is never allocated
+    private Object[] bodies;
+    private long[] handles;
+    private BodyStore bodyStore;
+    private BodyCompressor compressor;
+    // one bit per slot
+    private long[] read = NO_LONGS;
+    private long[] deleted = NO_LONGS;
+    // which handles point at compressed bytes
+    private long[] compressed = NO_LONGS;
+    // slots in use, deleted ones included
+    private int slots;
+    private int size;
+    // highest ID ever added, deleted or not
+    private int lastId;
+
+    int size() {
+        return size;
+    }
+
+    void add(int messageId, int senderId, String body) {
+        addHeap(messageId, senderId, body);
+    }
+
+    void add(int messageId, int senderId, byte[] body, BodyCompressor compressor) {
+        addHeap(messageId, senderId, body);
+        this.compressor = compressor;
+    }
+
+    // compressor is null if the bytes behind the handle are not compressed
+    void add(int messageId, int senderId, BodyStore store, long handle, BodyCompressor compressor) {
+        int slot = append(messageId, senderId);
+        if (handles == null) {
+            handles = new long[ids.length];
+        }
+        handles[slot] = handle;
+        bodyStore = store;
+        if (compressor != null) {
+            compressed[slot >>> 6] |= 1L << slot;
+            this.compressor = compressor;
+        }
+    }
+
+    private void addHeap(int messageId, int senderId, Object body) {
+        int slot = append(messageId, senderId);
+        if (bodies == null) {
+            bodies = new Object[ids.length];
+        }
+        bodies[slot] = body;
+    }
+
+    private int append(int messageId, int senderId) {
+        if (slots == ids.length) {
+            int capacity = Math.max(4, slots * 2);
+            ids = Arrays.copyOf(ids, capacity);
+            senders = Arrays.copyOf(senders, capacity);
+            if (bodies != null) {
+                bodies = Arrays.copyOf(bodies, capacity);
+            }
+            if (handles != null) {
+                handles = Arrays.copyOf(handles, capacity);
+            }
+            read = Arrays.copyOf(read, (capacity + 63) >>> 6);
+            deleted = Arrays.copyOf(deleted, (capacity + 63) >>> 6);
+            compressed = Arrays.copyOf(compressed, (capacity + 63) >>> 6);
+        }
+        ids[slots] = messageId;
+        senders[slots] = senderId;
+        lastId = messageId;
+        size++;
+        return slots++;
+    }
+
+    // slot of the message, or -1 if it is not in the mailbox
+    int slot(int messageId) {
+        int slot = lowerBound(messageId);
+        if (slot < slots && ids[slot] == messageId && !bit(deleted, slot)) {
+            return slot;
+        }
+        return -1;
+    }
+
+    // first message slot at or after the given one, or -1
+    int next(int slot) {
+        for (; slot < slots; slot++) {
+            int word = slot >>> 6;
+            long live = ~deleted[word] >>> (slot & 63);
+            if (live != 0) {
+                slot += Long.numberOfTrailingZeros(live);
+                return slot < slots ? slot : -1;
+            }
+            slot |= 63;
+        }
+        return -1;
+    }
+
+    // slot of the n-th message (from 0) in arrival order, or -1; skips a word
+    // of slots at a time
+    int nth(int n) {
+        if (n >= size) {
+            return -1;
+        }
+        if (slots == size) {
+            return n;
+        }
+        for (int word = 0; ; word++) {
+            long live = ~deleted[word];
+            int count = Long.bitCount(live);
+            if (n < count) {
+                for (; n > 0; n--) {
+                    live &= live - 1;
+                }
+                return (word << 6) + Long.numberOfTrailingZeros(live);
+            }
+            n -= count;
+        }
+    }
+
+    // slot of the first message with an ID of at least messageId, or -1
+    int firstFrom(int messageId) {
+        return next(lowerBound(messageId));
+    }
+
+    int lastId() {
+        return lastId;
+    }
+
+    // for a snapshot being loaded, whose mailbox may have lost its last messages
+    void restoreLastId(int messageId) {
+        lastId = Math.max(lastId, messageId);
+    }
+
+    int id(int slot) {
+        return ids[slot];
+    }
+
+    int sender(int slot) {
+        return senders[slot];
+    }
+
+    boolean isRead(int slot) {
+        return bit(read, slot);
+    }
+
+    void setRead(int slot) {
+        read[slot >>> 6] |= 1L << slot;
+    }
+
+    // For a Message handed out: the heap body, a String or compressed bytes,
+    // or null if it is in bodyStore()
+    Object heapBody(int slot) {
+        return bodies != null ? bodies[slot] : null;
+    }
+
+    // what decompresses the body, or null if it is kept as it is
+    BodyCompressor compressor(int slot) {
+        if (bodies != null) {
+            return bodies[slot] instanceof byte[] ? compressor : null;
+        }
+        return bit(compressed, slot) ? compressor : null;
+    }
+
+    // the text of the body, read back from wherever it is kept
+    String text(int slot) {
+        Object body = heapBody(slot);
+        if (body instanceof String) {
+            return (String) body;
+        }
+        byte[] bytes = body != null ? (byte[]) body : bodyStore.get(handles[slot]);
+        BodyCompressor c = compressor(slot);
+        return new String(c != null ? c.decompress(bytes) : bytes, StandardCharsets.UTF_8);
+    }
+
+    BodyStore bodyStore() {
+        return bodyStore;
+    }
+
+    long handle(int slot) {
+        return handles[slot];
+    }
+
+    void delete(int slot) {
+        deleted[slot >>> 6] |= 1L << slot;
+        if (bodies != null) {
+            bodies[slot] = null;
+        }
+        size--;
+        if (slots >= 64 && size < slots / 2) {
+            compact();
+        }
+    }
+
+    // A copy that stays as it is while this one changes. Bodies are shared:
+    // heap ones are never changed and stored ones never overwritten.
+    Mailbox copy() {
+        Mailbox c = new Mailbox();
+        c.ids = Arrays.copyOf(ids, slots);
+        c.senders = Arrays.copyOf(senders, slots);
+        c.bodies = bodies != null ? Arrays.copyOf(bodies, slots) : null;
+        c.handles = handles != null ? Arrays.copyOf(handles, slots) : null;
+        c.bodyStore = bodyStore;
+        c.compressor = compressor;
+        c.read = read.clone();
+        c.deleted = deleted.clone();
+        c.compressed = compressed.clone();
+        c.slots = slots;
+        c.size = size;
+        c.lastId = lastId;
+        return c;
+    }
+
+    // moves the messages to the front, in order, dropping deleted slots, and
+    // gives back memory if the mailbox has shrunk to a fraction of its arrays
+    private void compact() {
+        int to = 0;
+        long[] keptRead = new long[read.length];
+        long[] keptCompressed = new long[compressed.length];
+        for (int from = next(0); from >= 0; from = next(from + 1)) {
+            ids[to] = ids[from];
+            senders[to] = senders[from];
+            if (bodies != null) {
+                bodies[to] = bodies[from];
+            }
+            if (handles != null) {
+                handles[to] = handles[from];
+            }
+            if (bit(read, from)) {
+                keptRead[to >>> 6] |= 1L << to;
+            }
+            if (bit(compressed, from)) {
+                keptCompressed[to >>> 6] |= 1L << to;
+            }
+            to++;
+        }
+        if (bodies != null) {
+            Arrays.fill(bodies, to, slots, null);
+        }
+        read = keptRead;
+        compressed = keptCompressed;
+        Arrays.fill(deleted, 0);
+        slots = to;
+        if (slots < ids.length / 4) {
+            int capacity = Math.max(4, slots * 2);
+            ids = Arrays.copyOf(ids, capacity);
+            senders = Arrays.copyOf(senders, capacity);
+            if (bodies != null) {
+                bodies = Arrays.copyOf(bodies, capacity);
+            }
+            if (handles != null) {
+                handles = Arrays.copyOf(handles, capacity);
+            }
+            read = Arrays.copyOf(read, (capacity + 63) >>> 6);
+            compressed = Arrays.copyOf(compressed, (capacity + 63) >>> 6);
+            deleted = new long[(capacity + 63) >>> 6];
+        }
+    }
+
+    private int lowerBound(int messageId) {
+        int lo = 0;
+        int hi = slots;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (ids[mid] < messageId) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    private static boolean bit(long[] bits, int slot) {
+        return (bits[slot >>> 6] & 1L << slot) != 0;
+    }
+}
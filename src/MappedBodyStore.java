@@ -0,0 +1,73 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+// Keeps message bodies in fixed-size memory-mapped segment files, so the heap
+// only holds a handle per message: segment number in the high 32 bits and the
+// offset of the entry in the low 32. Each entry is an int length and the bytes.
+// Space of deleted messages is not reclaimed; segments are rebuilt at startup
+// from the write-ahead log.
+public class MappedBodyStore implements BodyStore {
+    private final File directory;
+    private final int segmentSize;
+    private final List<MappedByteBuffer> segments = new ArrayList<>();
+    private volatile MappedByteBuffer[] readable = new MappedByteBuffer[0];
+    private int writeOffset;
+
+    public MappedBodyStore(File directory, int segmentSize) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        File[] old = directory.listFiles((dir, name) -> name.startsWith("segment-"));
+        if (old != null) {
+            for (File f : old) {
+                f.delete();
+            }
+        }
+        addSegment();
+    }
+
+    public synchronized long put(byte[] body) {
+        int needed = 4 + body.length;
+        if (needed > segmentSize) {
+            throw new IllegalArgumentException("Body of " + body.length + " bytes does not fit in a segment");
+        }
+        if (writeOffset + needed > segmentSize) {
+            addSegment();
+        }
+        int segment = segments.size() - 1;
+        ByteBuffer buf = segments.get(segment).duplicate();
+        buf.position(writeOffset);
+        buf.putInt(body.length).put(body);
+        long handle = ((long) segment << 32) | writeOffset;
+        writeOffset += needed;
+        return handle;
+    }
+
+    public byte[] get(long handle) {
+        ByteBuffer buf = readable[(int) (handle >>> 32)].duplicate();
+        buf.position((int) handle);
+        byte[] body = new byte[buf.getInt()];
+        buf.get(body);
+        return body;
+    }
+
+    private void addSegment() {
+        File file = new File(directory, String.format("segment-%05d.dat", segments.size()));
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            segments.add(channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize));
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot map " + file, e);
+        }
+        readable = segments.toArray(new MappedByteBuffer[0]);
+        writeOffset = 0;
+    }
+}
@@ -1,9 +1,19 @@
+import java.nio.charset.StandardCharsets;
+
+// A message as handed out by MessageStore. Mailboxes do not keep these objects;
+// they are built when a message is sent or read.
 public class Message {
-    private boolean isRead;
+    private volatile boolean isRead;
     private String sender;
     private String receiver;
     private final int messageID;
     private String body="";
+    // set instead of body when the text lives in a BodyStore
+    private BodyStore bodyStore;
+    private long bodyHandle;
+    // set when the body is kept compressed, on the heap or in bodyStore
+    private byte[] compressedBody;
+    private BodyCompressor compressor;
     public Message(String sender,String receiver,String body,boolean isRead,int messId){
         this.body=body;
         this.receiver=receiver;
@@ -12,6 +22,21 @@ public class Message {
         this.messageID=messId;
 
     }
+    public Message(String sender,String receiver,BodyStore bodyStore,long bodyHandle,boolean isRead,int messId){
+        this(sender,receiver,bodyStore,bodyHandle,null,isRead,messId);
+    }
+    // compressor is null if the bytes behind the handle are not compressed
+    public Message(String sender,String receiver,BodyStore bodyStore,long bodyHandle,BodyCompressor compressor,boolean isRead,int messId){
+        this(sender,receiver,(String) null,isRead,messId);
+        this.bodyStore=bodyStore;
+        this.bodyHandle=bodyHandle;
+        this.compressor=compressor;
+    }
+    public Message(String sender,String receiver,byte[] compressedBody,BodyCompressor compressor,boolean isRead,int messId){
+        this(sender,receiver,(String) null,isRead,messId);
+        this.compressedBody=compressedBody;
+        this.compressor=compressor;
+    }
     public boolean getIsRead(){
         return isRead;
     }
@@ -32,7 +57,34 @@ public class Message {
     public String getReceiver(){
         return receiver;
     }
+    // where the body is kept, or null if it is on the heap
+    public BodyStore getBodyStore() {
+        return bodyStore;
+    }
+    public long getBodyHandle() {
+        return bodyHandle;
+    }
+    // the body as compressed bytes on the heap, or null
+    public byte[] getCompressedBody() {
+        return compressedBody;
+    }
+    // what the stored body was compressed with, or null if it was not
+    public BodyCompressor getCompressor() {
+        return compressor;
+    }
+    // Remembers the text of a message just sent, so that logging and pushing
+    // it do not read it back from where it is stored
+    void keepBody(String body) {
+        this.body = body;
+    }
     public String getBody() {
+        if (body == null) {
+            byte[] bytes = compressedBody != null ? compressedBody : bodyStore.get(bodyHandle);
+            if (compressor != null) {
+                bytes = compressor.decompress(bytes);
+            }
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
         return body;
     }
 }
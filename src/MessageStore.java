@@ -0,0 +1,438 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Shared server state. Safe to use from every connection thread: message IDs
+// come from one atomic counter and each mailbox is guarded by its own account,
+// so sends to different users never wait on each other.
+public class MessageStore {
+    // longest body accepted, in chars; its log record stays far below WriteAheadLog.MAX_RECORD
+    static final int MAX_BODY = 256 * 1024;
+
+    private final AccountDirectory accounts = new AccountDirectory();
+    private final AtomicInteger lastMessageId = new AtomicInteger();
+    private final Subscriptions subscriptions = new Subscriptions();
+    private final Conversations conversations = new Conversations();
+    private final ServerMetrics metrics = new ServerMetrics(accounts);
+    private WriteAheadLog log;
+    private BodyStore bodyStore;
+    private BodyCompressor compressor;
+    // per account; 0 leaves messages unindexed
+    private long searchIndexBytes;
+    // set on threads that defer waiting for the log: the highest position
+    // their changes wait for since takeDeferred()
+    private final ThreadLocal<long[]> deferred = new ThreadLocal<>();
+
+    public AccountDirectory getAccounts() {
+        return accounts;
+    }
+
+    public Subscriptions getSubscriptions() {
+        return subscriptions;
+    }
+
+    public ServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    // Changes made after this call are written to the log; call it after replaying
+    public void setLog(WriteAheadLog log) {
+        this.log = log;
+    }
+
+    // Bodies of messages sent after this call go to the given store instead of the heap
+    public void setBodyStore(BodyStore bodyStore) {
+        this.bodyStore = bodyStore;
+    }
+
+    // Bodies of messages sent after this call are compressed where it pays off
+    public void setCompressor(BodyCompressor compressor) {
+        this.compressor = compressor;
+    }
+
+    // Messages delivered after this call are indexed for search, in an index
+    // of at most the given size per account; 0 turns indexing off
+    public void setSearchIndexBudget(long bytes) {
+        this.searchIndexBytes = bytes;
+    }
+
+    public boolean isSearchEnabled() {
+        return searchIndexBytes > 0;
+    }
+
+    // Registers the account with a new session; returns its token, or 0 if the username is taken
+    public long register(Account a) {
+        long token;
+        long lsn = 0;
+        synchronized (accounts) {
+            if (accounts.containsUsername(a.getUsername())) {
+                return 0;
+            }
+            token = accounts.newToken();
+            if (log != null) {
+                lsn = logged(() -> log.logRegister(a.getUsername(), token));
+            }
+            accounts.add(a, token);
+        }
+        awaitDurable(lsn);
+        return token;
+    }
+
+    // Registers the account with the given session token, when replaying the log
+    // or setting up a benchmark; returns false if the username or the token is taken
+    public boolean register(Account a, long token) {
+        long lsn = 0;
+        synchronized (accounts) {
+            if (accounts.containsUsername(a.getUsername()) || accounts.containsToken(token)) {
+                return false;
+            }
+            if (log != null) {
+                lsn = logged(() -> log.logRegister(a.getUsername(), token));
+            }
+            accounts.add(a, token);
+        }
+        awaitDurable(lsn);
+        return true;
+    }
+
+    // Opens another session of the account and returns its token
+    public long openSession(Account a) {
+        long token;
+        long lsn = 0;
+        synchronized (accounts) {
+            token = accounts.newToken();
+            if (log != null) {
+                lsn = logged(() -> log.logOpenSession(a.getUsername(), token));
+            }
+            accounts.openSession(a, token);
+        }
+        awaitDurable(lsn);
+        return token;
+    }
+
+    // Opens a session with the given token, when replaying the log
+    void restoreSession(Account a, long token) {
+        accounts.openSession(a, token);
+    }
+
+    // Ends the session; returns false if the token is unknown or the account's last session
+    public boolean closeSession(long token) {
+        long lsn = 0;
+        synchronized (accounts) {
+            Account a = accounts.getByToken(token);
+            if (a == null || a.sessions == 1) {
+                return false;
+            }
+            if (log != null) {
+                lsn = logged(() -> log.logCloseSession(token));
+            }
+            accounts.closeSession(token);
+        }
+        awaitDurable(lsn);
+        return true;
+    }
+
+    public Message send(Account sender, Account receiver, String body) {
+        checkBody(body);
+        Message message;
+        long lsn = 0;
+        // the ID is taken under the receiver's lock so the log sees each mailbox in order
+        synchronized (receiver) {
+            message = newMessage(sender.getUsername(), receiver.getUsername(), body,
+                    lastMessageId.incrementAndGet());
+            if (log != null) {
+                lsn = logged(() -> log.logSend(message));
+            }
+            receiver.addMessage(message, sender);
+            index(receiver, sender, message);
+            conversations.add(sender, receiver, message.getMessageID());
+        }
+        // a thread that does not wait for the log leaves the push to the flusher
+        if (awaitDurable(lsn) || !whenDurable(lsn, () -> subscriptions.publish(message))) {
+            subscriptions.publish(message);
+        }
+        return message;
+    }
+
+    // Sends bodies.get(i) to receivers.get(i) for every i. The log is waited on
+    // once for the whole batch instead of once per message.
+    public List<Message> sendAll(Account sender, List<Account> receivers, List<String> bodies) {
+        for (String body : bodies) {
+            checkBody(body);
+        }
+        List<Message> sent = new ArrayList<>(receivers.size());
+        long lsn = 0;
+        for (int i = 0; i < receivers.size(); i++) {
+            Account receiver = receivers.get(i);
+            synchronized (receiver) {
+                Message message = newMessage(sender.getUsername(), receiver.getUsername(), bodies.get(i),
+                        lastMessageId.incrementAndGet());
+                if (log != null) {
+                    lsn = logged(() -> log.logSend(message));
+                }
+                receiver.addMessage(message, sender);
+                index(receiver, sender, message);
+                conversations.add(sender, receiver, message.getMessageID());
+                sent.add(message);
+            }
+        }
+        Runnable publish = () -> {
+            for (Message message : sent) {
+                subscriptions.publish(message);
+            }
+        };
+        if (awaitDurable(lsn) || !whenDurable(lsn, publish)) {
+            publish.run();
+        }
+        return sent;
+    }
+
+    // Puts a message back into its receiver's mailbox while replaying the log
+    public void restore(String senderName, String receiverName, String body, int messageId) {
+        Account sender = accounts.getByUsername(senderName);
+        Account receiver = accounts.getByUsername(receiverName);
+        if (sender == null || receiver == null) {
+            return;
+        }
+        lastMessageId.accumulateAndGet(messageId, Math::max);
+        // a receiver's messages are logged in ID order, so the snapshot the
+        // log is replayed onto already has this one
+        if (messageId <= receiver.getLastMessageId()) {
+            return;
+        }
+        Message message = newMessage(senderName, receiverName, body, messageId);
+        receiver.addMessage(message, sender);
+        index(receiver, sender, message);
+        conversations.add(sender, receiver, messageId);
+    }
+
+    // Puts a message from a snapshot into its receiver's mailbox. Mailboxes can
+    // be loaded in parallel, each from one thread; call finishLoad() after.
+    void load(Account sender, Account receiver, String body, int messageId, boolean read) {
+        Message message = newMessage(sender.getUsername(), receiver.getUsername(), body, messageId);
+        message.setRead(read);
+        receiver.addMessage(message, sender);
+        index(receiver, sender, message);
+        conversations.load(sender, receiver, messageId);
+    }
+
+    void finishLoad(int lastMessageId) {
+        conversations.sortAll();
+        this.lastMessageId.accumulateAndGet(lastMessageId, Math::max);
+    }
+
+    int getLastMessageId() {
+        return lastMessageId.get();
+    }
+
+    // returns the message and marks it read, or null if it is not in the mailbox
+    public Message read(Account account, int messageId) {
+        Message message;
+        long lsn = 0;
+        synchronized (account) {
+            message = account.getMessage(messageId);
+            if (message == null) {
+                return null;
+            }
+            if (account.markRead(messageId) && log != null) {
+                lsn = logged(() -> log.logRead(account.getUsername(), messageId));
+            }
+        }
+        awaitDurable(lsn);
+        return message;
+    }
+
+    // Messages with the given IDs that are in the mailbox, in the order asked for.
+    // With markRead they are all marked read under one hold of the mailbox lock,
+    // so no reader sees only part of the batch read.
+    public List<Message> readAll(Account account, int[] messageIds, boolean markRead) {
+        List<Message> found = new ArrayList<>(messageIds.length);
+        long lsn;
+        synchronized (account) {
+            for (int id : messageIds) {
+                Message message = account.getMessage(id);
+                if (message != null) {
+                    found.add(message);
+                }
+            }
+            lsn = markRead ? markRead(account, found) : 0;
+        }
+        awaitDurable(lsn);
+        return found;
+    }
+
+    // Up to limit messages with IDs in [fromId, toId], optionally marked read as in readAll
+    public List<Message> readRange(Account account, int fromId, int toId, int limit, boolean markRead) {
+        List<Message> found;
+        long lsn;
+        synchronized (account) {
+            found = account.getMessagesBetween(fromId, toId, limit);
+            lsn = markRead ? markRead(account, found) : 0;
+        }
+        awaitDurable(lsn);
+        return found;
+    }
+
+    // Up to limit messages between the account and contact, in both directions,
+    // with IDs below beforeId and newest first
+    public List<Message> history(Account account, Account contact, int beforeId, int limit) {
+        int[] ids = conversations.before(account, contact, beforeId, limit);
+        // each message is in one of the two mailboxes, unless it was deleted just now
+        Message[] received = account.getMessages(ids);
+        Message[] sent = contact.getMessages(ids);
+        List<Message> page = new ArrayList<>(ids.length);
+        for (int i = 0; i < ids.length; i++) {
+            Message message = received[i] != null ? received[i] : sent[i];
+            if (message != null) {
+                page.add(message);
+            }
+        }
+        return page;
+    }
+
+    // Up to limit messages of the account with IDs below beforeId that have every
+    // word of the query, newest first. "from:<user>" matches the sender.
+    public List<Message> search(Account account, String query, int beforeId, int limit) {
+        Message[] found = account.getMessages(account.search(SearchIndex.query(query), beforeId, limit));
+        List<Message> page = new ArrayList<>(found.length);
+        for (Message message : found) {
+            // unless it was deleted just now
+            if (message != null) {
+                page.add(message);
+            }
+        }
+        return page;
+    }
+
+    private static void checkBody(String body) {
+        if (body.length() > MAX_BODY) {
+            throw new IllegalArgumentException("Message body of " + body.length() + " chars is too long");
+        }
+    }
+
+    private void index(Account receiver, Account sender, Message message) {
+        if (searchIndexBytes > 0) {
+            receiver.index(message.getMessageID(), sender.getUsername(), message.getBody(), searchIndexBytes);
+        }
+    }
+
+    // caller holds the account's lock; returns the position to wait for in the log
+    private long markRead(Account account, List<Message> messages) {
+        long lsn = 0;
+        for (Message message : messages) {
+            if (account.markRead(message.getMessageID()) && log != null) {
+                lsn = logged(() -> log.logRead(account.getUsername(), message.getMessageID()));
+            }
+        }
+        return lsn;
+    }
+
+    public boolean delete(Account account, int messageId) {
+        long lsn = 0;
+        synchronized (account) {
+            int sender = account.getSenderId(messageId);
+            if (sender < 0 || !account.deleteMessage(messageId)) {
+                return false;
+            }
+            conversations.remove(accounts.get(sender), account, messageId);
+            if (log != null) {
+                lsn = logged(() -> log.logDelete(account.getUsername(), messageId));
+            }
+        }
+        awaitDurable(lsn);
+        return true;
+    }
+
+    public List<Message> mailbox(Account account) {
+        return account.getMessages();
+    }
+
+    public List<Message> mailbox(Account account, int offset, int limit) {
+        return account.getMessages(offset, limit);
+    }
+
+    private Message newMessage(String sender, String receiver, String body, int messageId) {
+        byte[] compressed = compressor != null ? compressor.compress(body) : null;
+        if (bodyStore == null && compressed == null) {
+            return new Message(sender, receiver, body, false, messageId);
+        }
+        Message m;
+        if (bodyStore == null) {
+            m = new Message(sender, receiver, compressed, compressor, false, messageId);
+        } else if (compressed == null) {
+            m = new Message(sender, receiver, bodyStore, bodyStore.put(body.getBytes(StandardCharsets.UTF_8)), false, messageId);
+        } else {
+            m = new Message(sender, receiver, bodyStore, bodyStore.put(compressed), compressor, false, messageId);
+        }
+        m.keepBody(body);
+        return m;
+    }
+
+    private interface LogWrite {
+        long write() throws IOException;
+    }
+
+    private static long logged(LogWrite write) {
+        try {
+            return write.write();
+        } catch (IOException e) {
+            throw new IllegalStateException("Write-ahead log failed", e);
+        }
+    }
+
+    // Changes made on the calling thread after this call return without
+    // waiting for the log; takeDeferred() tells the position their replies
+    // have to wait for. For NioServer's loops, which must never block.
+    public void deferDurability() {
+        deferred.set(new long[1]);
+    }
+
+    // The log position the changes deferred since the last call wait for, 0 if none
+    public long takeDeferred() {
+        long[] lsn = deferred.get();
+        long last = lsn[0];
+        lsn[0] = 0;
+        return last;
+    }
+
+    // Runs callback on the log's flusher once position lsn is on disk and
+    // returns true, or returns false if it already is
+    public boolean whenDurable(long lsn, Runnable callback) {
+        if (lsn == 0) {
+            return false;
+        }
+        try {
+            return log.whenDurable(lsn, callback);
+        } catch (IOException e) {
+            throw new IllegalStateException("Write-ahead log failed", e);
+        }
+    }
+
+    public boolean isDurable(long lsn) {
+        try {
+            return lsn == 0 || log.isDurable(lsn);
+        } catch (IOException e) {
+            throw new IllegalStateException("Write-ahead log failed", e);
+        }
+    }
+
+    // Waits until position lsn is on disk; returns false at once on a thread that defers
+    private boolean awaitDurable(long lsn) {
+        if (lsn == 0) {
+            return true;
+        }
+        long[] pending = deferred.get();
+        if (pending != null) {
+            pending[0] = Math.max(pending[0], lsn);
+            return false;
+        }
+        try {
+            log.awaitDurable(lsn);
+        } catch (IOException e) {
+            throw new IllegalStateException("Write-ahead log failed", e);
+        }
+        return true;
+    }
+}
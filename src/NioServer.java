@@ -0,0 +1,398 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Non-blocking server: the accepting thread hands every connection to one of
+// a few selector loops, so an idle session costs a buffer instead of a thread.
+class NioServer {
+    // room for a request with a body of MessageStore.MAX_BODY chars, up to 3 bytes each
+    private static final int MAX_LINE = 4 * MessageStore.MAX_BODY;
+    // a connection with more output than this waiting stops being read until
+    // its client catches up
+    private static final int MAX_BACKLOG = 256 * 1024;
+    // pushes waiting for the loop; a connection that falls further behind is unsubscribed
+    private static final int MAX_PUSHES = 1024;
+
+    private final int port;
+    private final MessageStore store;
+    private final ServerMetrics metrics;
+    private final EventLoop[] loops;
+
+    public NioServer(int port, int loopCount, MessageStore store) {
+        this.port = port;
+        this.store = store;
+        this.metrics = store.getMetrics();
+        this.loops = new EventLoop[loopCount];
+    }
+
+    public void start() throws IOException {
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop();
+            Thread t = new Thread(loops[i], "nio-loop-" + i);
+            t.start();
+        }
+
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.socket().setReuseAddress(true);
+            server.bind(new InetSocketAddress(port));
+            metrics.listening();
+            int next = 0;
+            while (true) {
+                SocketChannel client = server.accept();
+                metrics.connectionAccepted();
+                client.configureBlocking(false);
+                loops[next].register(client);
+                next = (next + 1) % loops.length;
+            }
+        }
+    }
+
+    // State of one connection: partial input and pending output
+    private class Connection {
+        private final SocketChannel channel;
+        private final EventLoop loop;
+        // events for subscribed clients, added by other threads
+        private final Queue<byte[]> pushes = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger pushCount = new AtomicInteger();
+        private final ClientHandler handler = new ClientHandler(store);
+        private final ByteArrayOutputStream replies = new ByteArrayOutputStream();
+        private final Request request = new Request();
+        private char[] chars = new char[256];
+        private Reply reply;
+        private boolean binary;
+        private ByteBuffer in = ByteBuffer.allocate(512);
+        // output not written yet, in order, and its size with the held replies
+        private final Queue<ByteBuffer> out = new ArrayDeque<>();
+        private final ByteBuffer[] gather = new ByteBuffer[64];
+        private long backlog;
+        // replies waiting for their changes to reach the log, oldest first
+        private final Queue<Held> held = new ArrayDeque<>();
+        // log position a flusher callback is registered for, so that it is registered once
+        private long awaited;
+        private final Runnable durable;
+
+        Connection(SocketChannel channel, EventLoop loop) {
+            this.channel = channel;
+            this.loop = loop;
+            this.durable = () -> loop.pushed(this);
+        }
+
+        // returns false when the connection has to be closed
+        boolean read() throws IOException {
+            if (!in.hasRemaining()) {
+                if (in.capacity() >= MAX_LINE) {
+                    return false;
+                }
+                ByteBuffer bigger = ByteBuffer.allocate(Math.min(in.capacity() * 2, MAX_LINE));
+                in.flip();
+                bigger.put(in);
+                in = bigger;
+            }
+            int n = channel.read(in);
+            if (n < 0) {
+                return false;
+            }
+            metrics.bytesIn(n);
+            in.flip();
+            int start = 0;
+            if (reply == null) {
+                start = detectProtocol();
+            }
+            if (reply != null) {
+                start = binary ? readFrames(start) : readLines(start);
+            }
+            in.position(start);
+            in.compact();
+            long lsn = store.takeDeferred();
+            if (replies.size() > 0) {
+                // later replies wait behind held ones, so they stay in order
+                if (lsn == 0 && held.isEmpty()) {
+                    queue(replies.toByteArray());
+                } else {
+                    held.add(new Held(lsn, replies.toByteArray()));
+                    backlog += replies.size();
+                }
+                replies.reset();
+            }
+            return true;
+        }
+
+        // Queues the held replies whose changes are on disk by now
+        private void release() {
+            while (!held.isEmpty()) {
+                long lsn = held.peek().lsn;
+                if (lsn > awaited) {
+                    // one flusher callback per position; it wakes the loop for this connection
+                    if (store.whenDurable(lsn, durable)) {
+                        awaited = lsn;
+                        return;
+                    }
+                } else if (!store.isDurable(lsn)) {
+                    return;
+                }
+                byte[] bytes = held.poll().bytes;
+                backlog -= bytes.length;
+                queue(bytes);
+            }
+        }
+
+        // binary clients announce themselves with BinaryProtocol.MAGIC
+        private int detectProtocol() throws IOException {
+            if (in.limit() == 0) {
+                return 0;
+            }
+            if (in.get(0) != BinaryProtocol.MAGIC[0]) {
+                reply = new Reply.TextReply(new OutputStreamWriter(replies, StandardCharsets.UTF_8));
+                handler.setSubscriber(this::push);
+                return 0;
+            }
+            if (in.limit() < BinaryProtocol.MAGIC.length) {
+                return 0;
+            }
+            for (int i = 1; i < BinaryProtocol.MAGIC.length; i++) {
+                if (in.get(i) != BinaryProtocol.MAGIC[i]) {
+                    throw new IOException("Bad protocol header");
+                }
+            }
+            binary = true;
+            reply = new Reply.BinaryReply(replies);
+            handler.setSubscriber(this::push);
+            replies.write(BinaryProtocol.MAGIC);
+            return BinaryProtocol.MAGIC.length;
+        }
+
+        private int readLines(int start) throws IOException {
+            for (int i = start; i < in.limit(); i++) {
+                if (in.get(i) == '\n') {
+                    int end = i;
+                    if (end > start && in.get(end - 1) == '\r') {
+                        end--;
+                    }
+                    int length = decodeLine(start, end);
+                    request.parseText(chars, length);
+                    handler.handle(request, reply);
+                    start = i + 1;
+                }
+            }
+            return start;
+        }
+
+        private int readFrames(int start) throws IOException {
+            while (start < in.limit()) {
+                long length = 0;
+                int pos = start;
+                int shift = 0;
+                while (true) {
+                    if (pos >= in.limit()) {
+                        return start;
+                    }
+                    byte b = in.get(pos++);
+                    length |= (long) (b & 0x7F) << shift;
+                    if ((b & 0x80) == 0) {
+                        break;
+                    }
+                    shift += 7;
+                    if (shift > 28) {
+                        throw new IOException("Malformed frame length");
+                    }
+                }
+                if (length > MAX_LINE - 8) {
+                    throw new IOException("Frame of " + length + " bytes is too large");
+                }
+                if (in.limit() - pos < length) {
+                    return start;
+                }
+                request.parseBinary(in.array(), pos, pos + (int) length);
+                handler.handle(request, reply);
+                start = pos + (int) length;
+            }
+            return start;
+        }
+
+        // Copies the line in[start, end) into chars; only non-ASCII lines go through a String
+        private int decodeLine(int start, int end) {
+            int length = end - start;
+            if (chars.length < length) {
+                chars = new char[Math.max(length, chars.length * 2)];
+            }
+            byte[] bytes = in.array();
+            for (int i = 0; i < length; i++) {
+                byte b = bytes[start + i];
+                if (b < 0) {
+                    String line = new String(bytes, start, length, StandardCharsets.UTF_8);
+                    line.getChars(0, line.length(), chars, 0);
+                    return line.length();
+                }
+                chars[i] = (char) b;
+            }
+            return length;
+        }
+
+        // Called from the sender's thread; the loop writes the event after the current reply
+        private void push(Message m) {
+            if (pushCount.incrementAndGet() > MAX_PUSHES) {
+                pushCount.decrementAndGet();
+                throw new IllegalStateException("Too many pushes pending");
+            }
+            pushes.add(Reply.encodePush(binary, m));
+            loop.pushed(this);
+        }
+
+        // pushes, and replies whose changes reached the log
+        void queuePushes() {
+            release();
+            byte[] event;
+            while ((event = pushes.poll()) != null) {
+                pushCount.decrementAndGet();
+                queue(event);
+            }
+        }
+
+        void queue(byte[] bytes) {
+            out.add(ByteBuffer.wrap(bytes));
+            backlog += bytes.length;
+        }
+
+        // Writes what is queued, many buffers per call, so that a reply and
+        // the pushes after it leave in one segment; returns true when
+        // everything has been written
+        boolean write() throws IOException {
+            while (!out.isEmpty()) {
+                int count = 0;
+                for (ByteBuffer b : out) {
+                    if (count == gather.length) {
+                        break;
+                    }
+                    gather[count++] = b;
+                }
+                long n = channel.write(gather, 0, count);
+                metrics.bytesOut(n);
+                backlog -= n;
+                boolean partial = gather[count - 1].hasRemaining();
+                Arrays.fill(gather, 0, count, null);
+                while (!out.isEmpty() && !out.peek().hasRemaining()) {
+                    out.poll();
+                }
+                if (partial) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        // true while the client is too far behind to take more requests
+        boolean backedUp() {
+            return backlog > MAX_BACKLOG;
+        }
+    }
+
+    private static class Held {
+        final long lsn;
+        final byte[] bytes;
+
+        Held(long lsn, byte[] bytes) {
+            this.lsn = lsn;
+            this.bytes = bytes;
+        }
+    }
+
+    private class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<SocketChannel> pending = new ConcurrentLinkedQueue<>();
+        private final Queue<Connection> pushed = new ConcurrentLinkedQueue<>();
+
+        EventLoop() throws IOException {
+            this.selector = Selector.open();
+        }
+
+        void register(SocketChannel channel) {
+            pending.add(channel);
+            selector.wakeup();
+        }
+
+        void pushed(Connection conn) {
+            pushed.add(conn);
+            selector.wakeup();
+        }
+
+        public void run() {
+            // replies to changes wait in their connection until the log has them
+            store.deferDurability();
+            while (true) {
+                try {
+                    selector.select();
+                    SocketChannel channel;
+                    while ((channel = pending.poll()) != null) {
+                        channel.register(selector, SelectionKey.OP_READ, new Connection(channel, this));
+                        metrics.connectionOpened();
+                    }
+                    Connection conn;
+                    while ((conn = pushed.poll()) != null) {
+                        SelectionKey key = conn.channel.keyFor(selector);
+                        if (key != null && key.isValid()) {
+                            flush(key, conn);
+                        }
+                    }
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        process(key);
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        private void process(SelectionKey key) {
+            Connection conn = (Connection) key.attachment();
+            try {
+                if (key.isReadable() && !conn.read()) {
+                    close(key);
+                    return;
+                }
+                flush(key, conn);
+            } catch (IOException | RuntimeException e) {
+                metrics.connectionError();
+                close(key);
+            }
+        }
+
+        private void flush(SelectionKey key, Connection conn) {
+            try {
+                conn.queuePushes();
+                int ops = conn.write() ? 0 : SelectionKey.OP_WRITE;
+                // a backed-up connection is read again once its output drains,
+                // or its held replies are released
+                key.interestOps(conn.backedUp() ? ops : ops | SelectionKey.OP_READ);
+            } catch (IOException | RuntimeException e) {
+                close(key);
+            }
+        }
+
+        private void close(SelectionKey key) {
+            key.cancel();
+            ((Connection) key.attachment()).handler.close();
+            metrics.connectionClosed();
+            try {
+                key.channel().close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
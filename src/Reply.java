@@ -0,0 +1,114 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+// Response to one request, written in the protocol the request came in.
+// A reply is either one line of text or a list of items.
+abstract class Reply {
+
+    // Starts the reply to the request with the given ID
+    void begin(long requestId) throws IOException {
+    }
+
+    abstract void text(String s) throws IOException;
+
+    abstract void item(String s) throws IOException;
+
+    // Finishes the reply and pushes it to the client
+    abstract void end() throws IOException;
+
+    // Event for a subscribed connection, sent between replies.
+    // Text: "PUSH <id> <sender> <body>" on its own line; binary: a PUSH frame.
+    static byte[] encodePush(boolean binary, Message m) {
+        try {
+            ByteArrayOutputStream event = new ByteArrayOutputStream();
+            if (binary) {
+                ByteArrayOutputStream payload = new ByteArrayOutputStream();
+                payload.write(BinaryProtocol.PUSH);
+                BinaryProtocol.writeVarint(payload, 0);
+                BinaryProtocol.writeNumber(payload, m.getMessageID());
+                BinaryProtocol.writeString(payload, m.getSender());
+                BinaryProtocol.writeString(payload, m.getBody());
+                BinaryProtocol.writeFrame(event, payload);
+            } else {
+                String line = "PUSH " + m.getMessageID() + " " + m.getSender() + " " + m.getBody() + "\n";
+                event.write(line.getBytes(StandardCharsets.UTF_8));
+            }
+            return event.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // Text protocol: the reply is one line; list items are each followed by "/n"
+    static class TextReply extends Reply {
+        private final Writer out;
+
+        TextReply(Writer out) {
+            this.out = out;
+        }
+
+        void text(String s) throws IOException {
+            out.write(s);
+        }
+
+        void item(String s) throws IOException {
+            out.write(s);
+            out.write("/n");
+        }
+
+        void end() throws IOException {
+            out.write('\n');
+            out.flush();
+        }
+    }
+
+    // Binary protocol: a REPLY frame holding every item as a string field. Long
+    // lists are streamed as REPLY_PART frames of about PART_SIZE bytes first.
+    // Every frame carries the request ID. Frames are written under out's lock,
+    // the one pushes to the same stream take, so an event only lands between them.
+    static class BinaryReply extends Reply {
+        private static final int PART_SIZE = 8192;
+        private final OutputStream out;
+        private final ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        private long requestId;
+
+        BinaryReply(OutputStream out) {
+            this.out = out;
+        }
+
+        void begin(long requestId) throws IOException {
+            this.requestId = requestId;
+            payload.reset();
+            payload.write(BinaryProtocol.REPLY);
+            BinaryProtocol.writeVarint(payload, requestId);
+        }
+
+        void text(String s) throws IOException {
+            BinaryProtocol.writeString(payload, s);
+        }
+
+        void item(String s) throws IOException {
+            BinaryProtocol.writeString(payload, s);
+            if (payload.size() >= PART_SIZE) {
+                byte[] part = payload.toByteArray();
+                part[0] = BinaryProtocol.REPLY_PART;
+                synchronized (out) {
+                    BinaryProtocol.writeVarint(out, part.length);
+                    out.write(part);
+                }
+                begin(requestId);
+            }
+        }
+
+        void end() throws IOException {
+            synchronized (out) {
+                BinaryProtocol.writeFrame(out, payload);
+                out.flush();
+            }
+            payload.reset();
+        }
+    }
+}
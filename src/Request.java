@@ -0,0 +1,236 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// One decoded request, whichever protocol it arrived in. Arguments are
+// numbered from the first field after the opcode.
+//
+// A connection keeps one Request and parses every incoming request into it.
+// Fields are only recorded as offsets into the caller's buffer; numbers are
+// parsed in place and a String is created only when an argument is asked for
+// as text, so the buffer must stay untouched until the request is handled.
+class Request {
+    private static final int TEXT = 0;
+    private static final int NUMBER = 1;
+    private static final int BYTES = 2;
+
+    private int op;
+    private long id;
+    private int count;
+    private int[] kinds = new int[8];
+    private int[] starts = new int[8];
+    private int[] ends = new int[8];
+    private long[] numbers = new long[8];
+    private char[] chars;
+    private int charsLength;
+    private byte[] bytes;
+    // read position while parsing a binary request
+    private int pos;
+
+    // Text protocol: "<host> <port> <op> <arg> <arg> ...", split on single spaces
+    void parseText(char[] buf, int length) {
+        chars = buf;
+        charsLength = length;
+        count = 0;
+        op = -1;
+        id = 0;
+        int field = 0;
+        int start = 0;
+        for (int i = 0; i <= length; i++) {
+            if (i == length || buf[i] == ' ') {
+                if (field == 2) {
+                    op = parseOp(buf, start, i);
+                } else if (field > 2) {
+                    add(TEXT, start, i, 0);
+                }
+                field++;
+                start = i + 1;
+            }
+        }
+        // like String.split, trailing empty fields do not count
+        while (count > 0 && starts[count - 1] == ends[count - 1]) {
+            count--;
+        }
+    }
+
+    void parseText(CharSequence line) {
+        if (chars == null || chars.length < line.length()) {
+            chars = new char[Math.max(64, line.length())];
+        }
+        for (int i = 0; i < line.length(); i++) {
+            chars[i] = line.charAt(i);
+        }
+        parseText(chars, line.length());
+    }
+
+    // Binary protocol: opcode byte, request ID and BinaryProtocol fields, in payload[offset, end)
+    void parseBinary(byte[] payload, int offset, int end) throws IOException {
+        if (end <= offset) {
+            throw new IOException("Empty request");
+        }
+        bytes = payload;
+        count = 0;
+        op = payload[offset] & 0xFF;
+        pos = offset + 1;
+        id = varint(payload, end);
+        while (pos < end) {
+            long header = varint(payload, end);
+            if ((header & 1) == 0) {
+                add(NUMBER, 0, 0, header >>> 1);
+            } else {
+                long len = header >>> 1;
+                if (len > end - pos) {
+                    throw new IOException("Malformed field");
+                }
+                add(BYTES, pos, pos + (int) len, 0);
+                pos += (int) len;
+            }
+        }
+    }
+
+    private long varint(byte[] payload, int end) throws IOException {
+        long value = 0;
+        for (int shift = 0; ; shift += 7) {
+            if (pos >= end || shift >= 64) {
+                throw new IOException("Malformed field");
+            }
+            int b = payload[pos++];
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+    }
+
+    private static int parseOp(char[] buf, int start, int end) {
+        if (start == end || end - start > 9) {
+            return -1;
+        }
+        int value = 0;
+        for (int i = start; i < end; i++) {
+            char c = buf[i];
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    private void add(int kind, int start, int end, long number) {
+        if (count == kinds.length) {
+            kinds = Arrays.copyOf(kinds, count * 2);
+            starts = Arrays.copyOf(starts, count * 2);
+            ends = Arrays.copyOf(ends, count * 2);
+            numbers = Arrays.copyOf(numbers, count * 2);
+        }
+        kinds[count] = kind;
+        starts[count] = start;
+        ends[count] = end;
+        numbers[count] = number;
+        count++;
+    }
+
+    public int op() {
+        return op;
+    }
+
+    // ID the client gave a binary request, echoed in its reply; 0 for text requests
+    public long id() {
+        return id;
+    }
+
+    public int argCount() {
+        return count;
+    }
+
+    public String string(int i) {
+        checkArg(i);
+        switch (kinds[i]) {
+            case NUMBER:
+                return Long.toString(numbers[i]);
+            case BYTES:
+                return new String(bytes, starts[i], ends[i] - starts[i], StandardCharsets.UTF_8);
+            default:
+                return new String(chars, starts[i], ends[i] - starts[i]);
+        }
+    }
+
+    public long number(int i) {
+        checkArg(i);
+        if (kinds[i] == NUMBER) {
+            return numbers[i];
+        }
+        int start = starts[i];
+        int end = ends[i];
+        boolean negative = end > start && charAt(i, start) == '-';
+        if (negative) {
+            start++;
+        }
+        if (start == end || end - start > 18) {
+            // empty or long enough to overflow: let Long.parseLong report it
+            return Long.parseLong(string(i));
+        }
+        long value = 0;
+        for (int p = start; p < end; p++) {
+            int c = charAt(i, p);
+            if (c < '0' || c > '9') {
+                throw new NumberFormatException("For input string: \"" + string(i) + "\"");
+            }
+            value = value * 10 + (c - '0');
+        }
+        return negative ? -value : value;
+    }
+
+    public int intArg(int i) {
+        return Math.toIntExact(number(i));
+    }
+
+    // true if argument i is made of letters, digits and '_' only
+    public boolean isWord(int i) {
+        checkArg(i);
+        if (kinds[i] == NUMBER) {
+            return true;
+        }
+        if (starts[i] == ends[i]) {
+            return false;
+        }
+        for (int p = starts[i]; p < ends[i]; p++) {
+            int c = charAt(i, p);
+            if (!(c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0' && c <= '9' || c == '_')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Everything from argument i to the end: the rest of the text line, or the field itself
+    public String rest(int i) {
+        if (i >= count) {
+            return "";
+        }
+        if (kinds[i] == TEXT) {
+            int start = starts[i];
+            int end = charsLength;
+            while (start < end && chars[start] <= ' ') {
+                start++;
+            }
+            while (end > start && chars[end - 1] <= ' ') {
+                end--;
+            }
+            return new String(chars, start, end - start);
+        }
+        return string(i);
+    }
+
+    // character, or for binary fields byte, at position p of argument i
+    private int charAt(int i, int p) {
+        return kinds[i] == BYTES ? bytes[p] : chars[p];
+    }
+
+    private void checkArg(int i) {
+        if (i >= count) {
+            throw new IllegalArgumentException("Missing argument " + (i + 1) + " for operation " + op);
+        }
+    }
+}
@@ -0,0 +1,311 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+// Inverted index of one mailbox: for every term, the IDs of the messages that
+// have it. Terms are the lowercased words of the body and "from:<sender>".
+// Messages arrive in ID order, so each posting list is only appended to, as
+// varint gaps between IDs, mostly one byte each.
+//
+// Deleting only counts the message; search skips IDs no longer in the mailbox,
+// and the lists are rewritten without them once they are half of what is
+// indexed. When the index outgrows its budget it forgets the older half of the
+// messages, which are then no longer found. Not thread-safe; Account guards it
+// with its lock.
+class SearchIndex {
+    static final String FROM = "from:";
+    private static final int MIN_TERM = 2;
+    // longer words are cut to their first MAX_TERM chars, in the index and in searches alike
+    private static final int MAX_TERM = 32;
+    private static final int[] NO_IDS = new int[0];
+    // rough heap cost of a term besides its postings: map entry, String, Postings
+    private static final int TERM_BYTES = 112;
+
+    private final Map<String, Postings> terms = new HashMap<>();
+    // messages with lower IDs are not indexed any more
+    private int horizon;
+    private int indexed;
+    private int deleted;
+    private long bytes;
+
+    // the distinct terms of a text, in the order they first appear
+    static List<String> terms(String text) {
+        // short texts are checked for repeats by scanning the list
+        Set<String> found = text.length() > 256 ? new HashSet<>() : null;
+        List<String> terms = new ArrayList<>();
+        int n = text.length();
+        int start = -1;
+        for (int i = 0; i <= n; i++) {
+            boolean word = i < n && Character.isLetterOrDigit(text.charAt(i));
+            if (word && start < 0) {
+                start = i;
+            } else if (!word && start >= 0) {
+                if (i - start >= MIN_TERM) {
+                    String term = text.substring(start, Math.min(i, start + MAX_TERM)).toLowerCase(Locale.ROOT);
+                    if (found != null ? found.add(term) : !terms.contains(term)) {
+                        terms.add(term);
+                    }
+                }
+                start = -1;
+            }
+        }
+        return terms;
+    }
+
+    static String senderTerm(String username) {
+        return FROM + username.toLowerCase(Locale.ROOT);
+    }
+
+    // Whether a search has something to look up and every word of it can be:
+    // words of a single letter or digit are not indexed, and leaving them out
+    // would match more than was asked for
+    static boolean searchable(String text) {
+        boolean any = false;
+        for (String part : text.trim().split("\\s+")) {
+            if (part.regionMatches(true, 0, FROM, 0, FROM.length())) {
+                any |= part.length() > FROM.length();
+                continue;
+            }
+            int run = 0;
+            for (int i = 0; i <= part.length(); i++) {
+                if (i < part.length() && Character.isLetterOrDigit(part.charAt(i))) {
+                    run++;
+                    continue;
+                }
+                if (run > 0 && run < MIN_TERM) {
+                    return false;
+                }
+                any |= run > 0;
+                run = 0;
+            }
+        }
+        return any;
+    }
+
+    // the terms of a search: its words, and "from:<sender>" as a sender term
+    static List<String> query(String text) {
+        List<String> query = new ArrayList<>();
+        for (String part : text.trim().split("\\s+")) {
+            List<String> found = part.regionMatches(true, 0, FROM, 0, FROM.length())
+                    ? Arrays.asList(senderTerm(part.substring(FROM.length()))) : terms(part);
+            for (String term : found) {
+                if (!query.contains(term)) {
+                    query.add(term);
+                }
+            }
+        }
+        return query;
+    }
+
+    long bytes() {
+        return bytes;
+    }
+
+    void add(int messageId, String sender, String body) {
+        postings(senderTerm(sender)).add(messageId);
+        for (String term : terms(body)) {
+            postings(term).add(messageId);
+        }
+        indexed++;
+    }
+
+    private Postings postings(String term) {
+        Postings p = terms.get(term);
+        if (p == null) {
+            p = new Postings();
+            terms.put(term, p);
+            bytes += TERM_BYTES + 2L * term.length() + p.data.length;
+        }
+        return p;
+    }
+
+    // a message of the mailbox was deleted; true once the index should be purged
+    boolean deleted(int messageId) {
+        if (messageId >= horizon) {
+            deleted++;
+        }
+        return deleted > 64 && deleted > indexed / 2;
+    }
+
+    // Rewrites the posting lists without the messages no longer in the mailbox
+    void purge(Mailbox mailbox) {
+        rewrite(mailbox, horizon);
+    }
+
+    // Forgets older messages, half of what is indexed at a time, and those no
+    // longer in the mailbox, until the index takes at most target bytes
+    void shrink(Mailbox mailbox, long target) {
+        while (bytes > target && indexed > 0) {
+            dropOlderHalf(mailbox);
+        }
+    }
+
+    private void dropOlderHalf(Mailbox mailbox) {
+        // every message is in the list of its sender
+        int total = 0;
+        for (Map.Entry<String, Postings> e : terms.entrySet()) {
+            if (e.getKey().startsWith(FROM)) {
+                total += e.getValue().count;
+            }
+        }
+        int[] ids = new int[total];
+        int n = 0;
+        for (Map.Entry<String, Postings> e : terms.entrySet()) {
+            if (e.getKey().startsWith(FROM)) {
+                int[] more = e.getValue().ids(Integer.MAX_VALUE);
+                System.arraycopy(more, 0, ids, n, more.length);
+                n += more.length;
+            }
+        }
+        if (ids.length == 0) {
+            return;
+        }
+        Arrays.sort(ids);
+        // the median too, so that every pass drops at least one message, even
+        // the last one when it alone takes more than the budget
+        horizon = Math.max(horizon, ids[ids.length / 2] + 1);
+        rewrite(mailbox, horizon);
+    }
+
+    private void rewrite(Mailbox mailbox, int from) {
+        long total = 0;
+        // every message has exactly one sender term
+        int messages = 0;
+        for (Iterator<Map.Entry<String, Postings>> it = terms.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<String, Postings> e = it.next();
+            Postings kept = new Postings();
+            for (int id : e.getValue().ids(Integer.MAX_VALUE)) {
+                if (id >= from && mailbox.slot(id) >= 0) {
+                    kept.add(id);
+                }
+            }
+            if (kept.count == 0) {
+                it.remove();
+            } else {
+                kept.trim();
+                e.setValue(kept);
+                total += TERM_BYTES + 2L * e.getKey().length() + kept.length;
+                if (e.getKey().startsWith(FROM)) {
+                    messages += kept.count;
+                }
+            }
+        }
+        bytes = total;
+        indexed = messages;
+        deleted = 0;
+    }
+
+    // IDs of up to limit messages below beforeId that have every term, newest
+    // first; the mailbox tells which are still there
+    int[] search(List<String> query, int beforeId, int limit, Mailbox mailbox) {
+        if (query.isEmpty()) {
+            return NO_IDS;
+        }
+        Postings[] lists = new Postings[query.size()];
+        for (int i = 0; i < lists.length; i++) {
+            lists[i] = terms.get(query.get(i));
+            if (lists[i] == null) {
+                return NO_IDS;
+            }
+        }
+        // start from the rarest term and keep what every other list has too
+        Arrays.sort(lists, (a, b) -> Integer.compare(a.count, b.count));
+        int[] candidates = lists[0].ids(beforeId);
+        int n = candidates.length;
+        for (int i = 1; i < lists.length && n > 0; i++) {
+            n = lists[i].retain(candidates, n);
+        }
+        int[] found = new int[Math.min(limit, n)];
+        int count = 0;
+        for (int i = n - 1; i >= 0 && count < found.length; i--) {
+            if (mailbox.slot(candidates[i]) >= 0) {
+                found[count++] = candidates[i];
+            }
+        }
+        return count == found.length ? found : Arrays.copyOf(found, count);
+    }
+
+    private class Postings {
+        private byte[] data = new byte[2];
+        private int length;
+        private int last;
+        private int count;
+
+        void add(int messageId) {
+            int gap = messageId - last;
+            int size = (38 - Integer.numberOfLeadingZeros(gap | 1)) / 7;
+            if (length + size > data.length) {
+                int grown = Math.max(data.length + (data.length >> 1), length + size);
+                bytes += grown - data.length;
+                data = Arrays.copyOf(data, grown);
+            }
+            while ((gap & ~0x7F) != 0) {
+                data[length++] = (byte) (gap & 0x7F | 0x80);
+                gap >>>= 7;
+            }
+            data[length++] = (byte) gap;
+            last = messageId;
+            count++;
+        }
+
+        void trim() {
+            data = Arrays.copyOf(data, length);
+        }
+
+        // the IDs below beforeId, in ascending order
+        int[] ids(int beforeId) {
+            int[] ids = new int[count];
+            int n = 0;
+            int id = 0;
+            for (int p = 0; p < length; ) {
+                int gap = 0;
+                int shift = 0;
+                byte b;
+                do {
+                    b = data[p++];
+                    gap |= (b & 0x7F) << shift;
+                    shift += 7;
+                } while (b < 0);
+                id += gap;
+                if (id >= beforeId) {
+                    break;
+                }
+                ids[n++] = id;
+            }
+            return n == ids.length ? ids : Arrays.copyOf(ids, n);
+        }
+
+        // Keeps the first n of the ascending candidates that are in this list
+        // too, moved to the front; returns how many are left
+        int retain(int[] candidates, int n) {
+            int kept = 0;
+            int c = 0;
+            int id = 0;
+            for (int p = 0; p < length && c < n; ) {
+                int gap = 0;
+                int shift = 0;
+                byte b;
+                do {
+                    b = data[p++];
+                    gap |= (b & 0x7F) << shift;
+                    shift += 7;
+                } while (b < 0);
+                id += gap;
+                while (c < n && candidates[c] < id) {
+                    c++;
+                }
+                if (c < n && candidates[c] == id) {
+                    candidates[kept++] = id;
+                    c++;
+                }
+            }
+            return kept;
+        }
+    }
+}
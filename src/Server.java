@@ -1,29 +1,126 @@
 import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
 import java.net.*;
-import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import javax.management.JMException;
+import javax.management.ObjectName;
 
 // Server class
 class Server {
-    private static ArrayList<Account> accounts;
+    private static MessageStore store;
+    private static ServerMetrics metrics;
+    // Busy replies are written off the accepting thread: a binary client is
+    // answered after its first request, which may take a while to arrive.
+    // Rejections beyond what the queue holds are closed without a reply.
+    private static final ThreadPoolExecutor rejector = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(64), r -> {
+                Thread t = new Thread(r, "rejector");
+                t.setDaemon(true);
+                return t;
+            });
+    private static final int REJECT_TIMEOUT_MS = 1000;
 
 
     public static void main(String[] args) {
+        ServerConfig config = new ServerConfig(args);
+        store = new MessageStore();
+        metrics = store.getMetrics();
+        metrics.setScrapeKey(config.get("admin-key", null));
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metrics,
+                    new ObjectName("MessageApplication:type=ServerMetrics"));
+        } catch (JMException e) {
+            e.printStackTrace();
+        }
+
+        if (config.get("bodies", "heap").equals("mmap")) {
+            File dir = new File(config.get("body-dir", new File(System.getProperty("java.io.tmpdir"), "message-bodies").getPath()));
+            try {
+                store.setBodyStore(new MappedBodyStore(dir, config.getInt("segment-size", 64) * 1024 * 1024));
+            } catch (IOException e) {
+                e.printStackTrace();
+                return;
+            }
+        }
+
+        // off unless asked for: every account that receives mail keeps its own index
+        store.setSearchIndexBudget(config.getInt("search-index", 0) * 1024L);
+
+        int compressThreshold = config.getInt("compress", 0);
+        if (compressThreshold > 0) {
+            store.setCompressor(new BodyCompressor(compressThreshold, config.getInt("compress-level", 6),
+                    config.getInt("compress-dictionary", 4) * 1024, metrics));
+        }
+
+        String walPath = config.get("wal", null);
+        if (walPath != null) {
+            try {
+                openLog(config, new File(walPath));
+            } catch (IOException e) {
+                e.printStackTrace();
+                return;
+            }
+        }
+
+        int statsSeconds = config.getInt("stats", 0);
+        if (statsSeconds > 0) {
+            startStatsReporter(statsSeconds);
+        }
+
+        String mode = config.get("mode", "thread");
+        int maxConnections = config.getInt("max-connections", 10000);
+        if (mode.equals("nio")) {
+            int loops = config.getInt("loops", Runtime.getRuntime().availableProcessors());
+            try {
+                new NioServer(config.getPort(), loops, store).start();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        } else if (mode.equals("thread")) {
+            runThreadPerConnection(config.getPort());
+        } else if (mode.equals("pool")) {
+            int threads = config.getInt("threads", 200);
+            ExecutorService executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(Math.max(1, maxConnections - threads)));
+            runWithExecutor(config.getPort(), executor, maxConnections);
+        } else if (mode.equals("virtual")) {
+            runWithExecutor(config.getPort(), newVirtualThreadExecutor(), maxConnections);
+        } else {
+            throw new IllegalArgumentException("Unknown mode: " + mode);
+        }
+    }
+
+    private static void runThreadPerConnection(int port) {
         ServerSocket server = null;
-        accounts = new ArrayList<>();
 
         try {
 
-            server = new ServerSocket(Integer.parseInt(args[0]));
+            server = new ServerSocket(port);
             server.setReuseAddress(true);
+            metrics.listening();
 
             while (true) {
 
                 Socket client = server.accept();
+                metrics.connectionAccepted();
 
                 ClientHandler clientSock
-                        = new ClientHandler(client, accounts);
+                        = new ClientHandler(client, store);
 
-                new Thread(clientSock).start();
+                new Thread(() -> {
+                    metrics.connectionOpened();
+                    try {
+                        clientSock.run();
+                    } finally {
+                        metrics.connectionClosed();
+                    }
+                }).start();
             }
         } catch (IOException e) {
             e.printStackTrace();
@@ -38,6 +135,184 @@ class Server {
         }
     }
 
+    // Runs each connection on the executor; connections over the limit get a busy reply
+    private static void runWithExecutor(int port, ExecutorService executor, int maxConnections) {
+        Semaphore permits = new Semaphore(maxConnections);
+
+        try (ServerSocket server = new ServerSocket(port)) {
+            server.setReuseAddress(true);
+            metrics.listening();
+
+            while (true) {
+                Socket client = server.accept();
+                metrics.connectionAccepted();
+
+                if (!permits.tryAcquire()) {
+                    reject(client);
+                    continue;
+                }
+                ClientHandler clientSock = new ClientHandler(client, store);
+                try {
+                    executor.execute(() -> {
+                        metrics.connectionOpened();
+                        try {
+                            clientSock.run();
+                        } finally {
+                            metrics.connectionClosed();
+                            permits.release();
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    permits.release();
+                    reject(client);
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    // Loads the latest snapshot and replays the log written since into the
+    // store, then records every further change in the log
+    private static void openLog(ServerConfig config, File file) throws IOException {
+        WriteAheadLog.SyncPolicy policy = WriteAheadLog.SyncPolicy.valueOf(
+                config.get("fsync", "batch").toUpperCase());
+        int defaultInterval = policy == WriteAheadLog.SyncPolicy.PERIODIC ? 1000 : 2;
+        File snapshot = new File(file.getPath() + ".snapshot");
+        long start = System.nanoTime();
+        int segment = 0;
+        if (snapshot.exists()) {
+            segment = Snapshot.load(snapshot, store,
+                    config.getInt("snapshot-threads", Runtime.getRuntime().availableProcessors()));
+        }
+        long loaded = System.nanoTime();
+        segment = WriteAheadLog.replay(file, segment, store);
+        long replayed = System.nanoTime();
+        metrics.restored(loaded - start, replayed - loaded);
+        System.out.println("Restored " + store.getAccounts().size() + " accounts: snapshot "
+                + (loaded - start) / 1_000_000 + "ms, log " + (replayed - loaded) / 1_000_000 + "ms");
+        WriteAheadLog log = new WriteAheadLog(file, segment, policy, config.getInt("fsync-interval", defaultInterval));
+        store.setLog(log);
+        int snapshotSeconds = config.getInt("snapshot-interval", 0);
+        if (snapshotSeconds > 0) {
+            startSnapshots(log, snapshot, snapshotSeconds);
+        }
+    }
+
+    // Takes a snapshot every so many seconds, while requests go on, unless
+    // nothing was logged since the last one
+    private static void startSnapshots(WriteAheadLog log, File file, int seconds) {
+        Thread snapshotter = new Thread(() -> {
+            long covered = log.position();
+            while (true) {
+                try {
+                    Thread.sleep(seconds * 1000L);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                long position = log.position();
+                if (position == covered) {
+                    continue;
+                }
+                try {
+                    Snapshot.take(store, log, file);
+                    covered = position;
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }, "snapshotter");
+        snapshotter.setDaemon(true);
+        snapshotter.start();
+    }
+
+    private static void reject(Socket client) {
+        metrics.connectionRejected();
+        try {
+            rejector.execute(() -> sendBusy(client));
+        } catch (RejectedExecutionException e) {
+            try {
+                client.close();
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
+        }
+    }
+
+    // Answers "Server busy" in the protocol the client speaks, then closes
+    private static void sendBusy(Socket client) {
+        try (Socket c = client) {
+            c.setSoTimeout(REJECT_TIMEOUT_MS);
+            InputStream in = new BufferedInputStream(c.getInputStream());
+            OutputStream out = new BufferedOutputStream(c.getOutputStream());
+            int first;
+            try {
+                first = in.read();
+            } catch (SocketTimeoutException e) {
+                // a text client that waits for the server; tell it anyway
+                first = -1;
+            }
+            if (first != BinaryProtocol.MAGIC[0]) {
+                out.write("Server busy\n".getBytes("UTF-8"));
+                out.flush();
+                return;
+            }
+            BinaryProtocol.readMagic(in, 1);
+            out.write(BinaryProtocol.MAGIC);
+            out.flush();
+            // the reply carries the ID of the client's first request
+            BinaryProtocol.Frame frame = new BinaryProtocol.Frame();
+            if (frame.read(in)) {
+                Request request = new Request();
+                request.parseBinary(frame.data, 0, frame.length);
+                Reply reply = new Reply.BinaryReply(out);
+                reply.begin(request.id());
+                reply.text("Server busy");
+                reply.end();
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            // the client went away, stayed silent or sent garbage
+        }
+    }
+
+    // Virtual threads need Java 21; looked up reflectively so the sources still build on Java 8
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            Method factory = java.util.concurrent.Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Virtual threads need Java 21 or newer", e);
+        }
+    }
+
+    // Prints accept rate and heap per open connection, to compare the modes
+    private static void startStatsReporter(int seconds) {
+        Thread reporter = new Thread(() -> {
+            long lastAccepted = 0;
+            Runtime rt = Runtime.getRuntime();
+            while (true) {
+                try {
+                    Thread.sleep(seconds * 1000L);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                long accepted = metrics.getAcceptedConnections();
+                int active = metrics.getActiveConnections();
+                long heap = rt.totalMemory() - rt.freeMemory();
+                System.out.println("accepted/s=" + (accepted - lastAccepted) / seconds
+                        + " active=" + active
+                        + " heapUsed=" + heap / 1024 + "KB"
+                        + " heapPerConnection=" + (active > 0 ? heap / active : 0) + "B"
+                        + " threads=" + Thread.activeCount());
+                lastAccepted = accepted;
+            }
+        }, "server-stats");
+        reporter.setDaemon(true);
+        reporter.start();
+    }
+
 
 
 }
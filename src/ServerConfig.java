@@ -0,0 +1,38 @@
+import java.util.HashMap;
+import java.util.Map;
+
+// Startup options of the server: java Server <port> [--name=value ...]
+class ServerConfig {
+    private final int port;
+    private final Map<String, String> options = new HashMap<>();
+
+    public ServerConfig(String[] args) {
+        this.port = Integer.parseInt(args[0]);
+        for (int i = 1; i < args.length; i++) {
+            String arg = args[i];
+            if (!arg.startsWith("--")) {
+                throw new IllegalArgumentException("Unknown option: " + arg);
+            }
+            int eq = arg.indexOf('=');
+            if (eq < 0) {
+                options.put(arg.substring(2), "true");
+            } else {
+                options.put(arg.substring(2, eq), arg.substring(eq + 1));
+            }
+        }
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public String get(String name, String def) {
+        String value = options.get(name);
+        return value != null ? value : def;
+    }
+
+    public int getInt(String name, int def) {
+        String value = options.get(name);
+        return value != null ? Integer.parseInt(value) : def;
+    }
+}
@@ -0,0 +1,374 @@
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+// Counters of the running server: requests and latency by operation, error
+// replies, bytes, connections, body compression, snapshots and startup.
+// Recording only touches striped counters and atomics, so it is cheap enough
+// to stay on. Mailbox sizes are not tracked; they are counted from the
+// accounts when a report is asked for.
+//
+// Read through JMX (ServerMetricsMXBean) or admin operation 11, which returns
+// report() in the Prometheus text format.
+public class ServerMetrics implements ServerMetricsMXBean {
+    // operations 1..MAX_OP get their own counters; anything else is counted as 0
+    private static final int MAX_OP = 15;
+
+    private final AccountDirectory accounts;
+    private final LongAdder[] requests = new LongAdder[MAX_OP + 1];
+    private final LatencyHistogram[] latency = new LatencyHistogram[MAX_OP + 1];
+    private final Map<String, LongAdder> errors = new ConcurrentHashMap<>();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final AtomicInteger activeConnections = new AtomicInteger();
+    private final LongAdder acceptedConnections = new LongAdder();
+    private final LongAdder rejectedConnections = new LongAdder();
+    private final LongAdder connectionErrors = new LongAdder();
+    // bodies BodyCompressor tried: kept compressed or not, and their sizes
+    private final LongAdder compressedBodies = new LongAdder();
+    private final LongAdder uncompressedBodies = new LongAdder();
+    private final LongAdder compressedRawBytes = new LongAdder();
+    private final LongAdder compressedBytes = new LongAdder();
+    private final LongAdder compressNanos = new LongAdder();
+    private final LongAdder decompressedBodies = new LongAdder();
+    private final LongAdder decompressNanos = new LongAdder();
+    // from JVM start until the server socket was open, and the parts of it
+    // spent loading the snapshot and replaying the log
+    private volatile long startupNanos;
+    private volatile long snapshotLoadNanos;
+    private volatile long replayNanos;
+    private final LongAdder snapshots = new LongAdder();
+    private volatile long lastSnapshotNanos;
+    private volatile long lastSnapshotBytes;
+    private volatile String scrapeKey;
+
+    public ServerMetrics(AccountDirectory accounts) {
+        this.accounts = accounts;
+        for (int i = 0; i <= MAX_OP; i++) {
+            requests[i] = new LongAdder();
+            latency[i] = new LatencyHistogram();
+        }
+    }
+
+    // Key that operation 11 has to present; null turns the operation off
+    public void setScrapeKey(String key) {
+        this.scrapeKey = key;
+    }
+
+    public boolean isScrapeKey(String key) {
+        String expected = scrapeKey;
+        return expected != null && expected.equals(key);
+    }
+
+    // One handled request; errorReply is the reply text if the request failed, else null
+    public void request(int op, long nanos, String errorReply) {
+        int i = op >= 1 && op <= MAX_OP ? op : 0;
+        requests[i].increment();
+        latency[i].record(nanos);
+        if (errorReply != null) {
+            errors.computeIfAbsent(errorReply, k -> new LongAdder()).increment();
+        }
+    }
+
+    public void bytesIn(long n) {
+        bytesIn.add(n);
+    }
+
+    public void bytesOut(long n) {
+        bytesOut.add(n);
+    }
+
+    public void connectionAccepted() {
+        acceptedConnections.increment();
+    }
+
+    public void connectionOpened() {
+        activeConnections.incrementAndGet();
+    }
+
+    public void connectionClosed() {
+        activeConnections.decrementAndGet();
+    }
+
+    public void connectionRejected() {
+        rejectedConnections.increment();
+    }
+
+    // A connection dropped because of a malformed request or an I/O failure
+    public void connectionError() {
+        connectionErrors.increment();
+    }
+
+    public void bodyCompressed(int rawBytes, int storedBytes, long nanos) {
+        compressedBodies.increment();
+        compressedRawBytes.add(rawBytes);
+        compressedBytes.add(storedBytes);
+        compressNanos.add(nanos);
+    }
+
+    // A body over the threshold kept as it is because it did not shrink
+    public void bodyNotCompressed(long nanos) {
+        uncompressedBodies.increment();
+        compressNanos.add(nanos);
+    }
+
+    public void bodyDecompressed(long nanos) {
+        decompressedBodies.increment();
+        decompressNanos.add(nanos);
+    }
+
+    public void restored(long snapshotLoadNanos, long replayNanos) {
+        this.snapshotLoadNanos = snapshotLoadNanos;
+        this.replayNanos = replayNanos;
+    }
+
+    // The server socket is open; the first call ends startup
+    public void listening() {
+        if (startupNanos == 0) {
+            long sinceStart = System.currentTimeMillis() - ManagementFactory.getRuntimeMXBean().getStartTime();
+            startupNanos = Math.max(1, sinceStart) * 1_000_000;
+        }
+    }
+
+    public void snapshotTaken(long nanos, long bytes) {
+        snapshots.increment();
+        lastSnapshotNanos = nanos;
+        lastSnapshotBytes = bytes;
+    }
+
+    // Streams of a blocking connection that count the bytes passing through
+    public InputStream countIn(InputStream in) {
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b >= 0) {
+                    bytesIn.increment();
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int n = super.read(b, off, len);
+                if (n > 0) {
+                    bytesIn.add(n);
+                }
+                return n;
+            }
+        };
+    }
+
+    public OutputStream countOut(OutputStream out) {
+        return new FilterOutputStream(out) {
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+                bytesOut.increment();
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+                bytesOut.add(len);
+            }
+        };
+    }
+
+    public long getRequestCount() {
+        long n = 0;
+        for (LongAdder r : requests) {
+            n += r.sum();
+        }
+        return n;
+    }
+
+    public long getErrorCount() {
+        long n = 0;
+        for (LongAdder e : errors.values()) {
+            n += e.sum();
+        }
+        return n;
+    }
+
+    public Map<String, Long> getRequestCountByOperation() {
+        Map<String, Long> counts = new LinkedHashMap<>();
+        for (int i = 0; i <= MAX_OP; i++) {
+            if (requests[i].sum() > 0) {
+                counts.put(String.valueOf(i), requests[i].sum());
+            }
+        }
+        return counts;
+    }
+
+    public Map<String, Long> getErrorCountByReply() {
+        Map<String, Long> counts = new TreeMap<>();
+        for (Map.Entry<String, LongAdder> e : errors.entrySet()) {
+            counts.put(e.getKey(), e.getValue().sum());
+        }
+        return counts;
+    }
+
+    public Map<String, Double> getLatencyP99ByOperation() {
+        Map<String, Double> p99 = new LinkedHashMap<>();
+        for (int i = 0; i <= MAX_OP; i++) {
+            if (latency[i].count() > 0) {
+                p99.put(String.valueOf(i), latency[i].percentile(99) / 1000.0);
+            }
+        }
+        return p99;
+    }
+
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    public int getActiveConnections() {
+        return activeConnections.get();
+    }
+
+    public long getAcceptedConnections() {
+        return acceptedConnections.sum();
+    }
+
+    public long getRejectedConnections() {
+        return rejectedConnections.sum();
+    }
+
+    public long getCompressedBodies() {
+        return compressedBodies.sum();
+    }
+
+    public double getBodyCompressionRatio() {
+        long stored = compressedBytes.sum();
+        return stored == 0 ? 0 : (double) compressedRawBytes.sum() / stored;
+    }
+
+    public double getBodyCompressMillis() {
+        return compressNanos.sum() / 1e6;
+    }
+
+    public double getBodyDecompressMillis() {
+        return decompressNanos.sum() / 1e6;
+    }
+
+    public double getStartupMillis() {
+        return startupNanos / 1e6;
+    }
+
+    public double getSnapshotLoadMillis() {
+        return snapshotLoadNanos / 1e6;
+    }
+
+    public double getLogReplayMillis() {
+        return replayNanos / 1e6;
+    }
+
+    public long getSnapshotCount() {
+        return snapshots.sum();
+    }
+
+    public double getLastSnapshotMillis() {
+        return lastSnapshotNanos / 1e6;
+    }
+
+    // heap taken by the search indexes of all mailboxes, estimated
+    public long getSearchIndexBytes() {
+        long bytes = 0;
+        int n = accounts.size();
+        for (int i = 0; i < n; i++) {
+            bytes += accounts.get(i).getSearchIndexBytes();
+        }
+        return bytes;
+    }
+
+    // Buckets 0, 1, 3, 7, ... 2^k - 1: each holds the accounts with at most that
+    // many messages and more than the bucket before
+    public Map<String, Long> getMailboxSizeDistribution() {
+        long[] buckets = new long[33];
+        int n = accounts.size();
+        for (int i = 0; i < n; i++) {
+            int size = accounts.get(i).getSizeOfMassages();
+            buckets[32 - Integer.numberOfLeadingZeros(size)]++;
+        }
+        Map<String, Long> distribution = new LinkedHashMap<>();
+        int last = buckets.length - 1;
+        while (last > 0 && buckets[last] == 0) {
+            last--;
+        }
+        for (int b = 0; b <= last; b++) {
+            distribution.put(String.valueOf((1L << b) - 1), buckets[b]);
+        }
+        return distribution;
+    }
+
+    public List<String> getReport() {
+        return report();
+    }
+
+    // Prometheus text format, one sample per line
+    public List<String> report() {
+        List<String> lines = new ArrayList<>();
+        for (int i = 0; i <= MAX_OP; i++) {
+            if (requests[i].sum() > 0) {
+                lines.add("requests_total{op=\"" + i + "\"} " + requests[i].sum());
+            }
+        }
+        for (Map.Entry<String, Long> e : getErrorCountByReply().entrySet()) {
+            lines.add("request_errors_total{reply=\"" + e.getKey() + "\"} " + e.getValue());
+        }
+        for (int i = 0; i <= MAX_OP; i++) {
+            LatencyHistogram h = latency[i];
+            if (h.count() > 0) {
+                String op = "op=\"" + i + "\"";
+                lines.add("request_latency_us{" + op + ",quantile=\"0.5\"} " + h.percentile(50) / 1000);
+                lines.add("request_latency_us{" + op + ",quantile=\"0.99\"} " + h.percentile(99) / 1000);
+                lines.add("request_latency_us{" + op + ",quantile=\"0.999\"} " + h.percentile(99.9) / 1000);
+                lines.add("request_latency_us_max{" + op + "} " + h.max() / 1000);
+            }
+        }
+        lines.add("bytes_in_total " + bytesIn.sum());
+        lines.add("bytes_out_total " + bytesOut.sum());
+        lines.add("connections_active " + activeConnections.get());
+        lines.add("connections_accepted_total " + acceptedConnections.sum());
+        lines.add("connections_rejected_total " + rejectedConnections.sum());
+        lines.add("connection_errors_total " + connectionErrors.sum());
+        lines.add("body_compressed_total " + compressedBodies.sum());
+        lines.add("body_compress_skipped_total " + uncompressedBodies.sum());
+        lines.add("body_compressed_raw_bytes_total " + compressedRawBytes.sum());
+        lines.add("body_compressed_bytes_total " + compressedBytes.sum());
+        lines.add("body_compression_ratio " + getBodyCompressionRatio());
+        lines.add("body_compress_seconds_total " + compressNanos.sum() / 1e9);
+        lines.add("body_decompressed_total " + decompressedBodies.sum());
+        lines.add("body_decompress_seconds_total " + decompressNanos.sum() / 1e9);
+        lines.add("startup_seconds " + startupNanos / 1e9);
+        lines.add("startup_snapshot_load_seconds " + snapshotLoadNanos / 1e9);
+        lines.add("startup_log_replay_seconds " + replayNanos / 1e9);
+        lines.add("snapshots_total " + snapshots.sum());
+        lines.add("snapshot_last_duration_seconds " + lastSnapshotNanos / 1e9);
+        lines.add("snapshot_last_bytes " + lastSnapshotBytes);
+        lines.add("search_index_bytes " + getSearchIndexBytes());
+        long cumulative = 0;
+        for (Map.Entry<String, Long> e : getMailboxSizeDistribution().entrySet()) {
+            cumulative += e.getValue();
+            lines.add("mailbox_size_bucket{le=\"" + e.getKey() + "\"} " + cumulative);
+        }
+        lines.add("mailbox_size_bucket{le=\"+Inf\"} " + cumulative);
+        return lines;
+    }
+}
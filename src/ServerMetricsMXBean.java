@@ -0,0 +1,58 @@
+import java.util.List;
+import java.util.Map;
+
+// JMX view of ServerMetrics, registered as MessageApplication:type=ServerMetrics
+public interface ServerMetricsMXBean {
+    long getRequestCount();
+
+    long getErrorCount();
+
+    // keyed by operation number
+    Map<String, Long> getRequestCountByOperation();
+
+    // keyed by the reply the client got, e.g. "Invalid Auth Token"
+    Map<String, Long> getErrorCountByReply();
+
+    // 99th percentile latency in microseconds, keyed by operation number
+    Map<String, Double> getLatencyP99ByOperation();
+
+    long getBytesIn();
+
+    long getBytesOut();
+
+    int getActiveConnections();
+
+    long getAcceptedConnections();
+
+    long getRejectedConnections();
+
+    long getCompressedBodies();
+
+    // text bytes per stored byte, over the bodies kept compressed
+    double getBodyCompressionRatio();
+
+    // time spent compressing and decompressing bodies
+    double getBodyCompressMillis();
+
+    double getBodyDecompressMillis();
+
+    // from JVM start until the server accepted connections
+    double getStartupMillis();
+
+    double getSnapshotLoadMillis();
+
+    double getLogReplayMillis();
+
+    long getSnapshotCount();
+
+    double getLastSnapshotMillis();
+
+    // heap taken by the search indexes of all mailboxes, estimated
+    long getSearchIndexBytes();
+
+    // number of accounts by mailbox size, keyed by the upper bound of the bucket
+    Map<String, Long> getMailboxSizeDistribution();
+
+    // the same lines as admin operation 11
+    List<String> getReport();
+}
@@ -0,0 +1,222 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+// Copy of the MessageStore on disk, so that startup replays only the log
+// written since. Taken while requests go on: the log moves to a new segment
+// first, then each mailbox is copied under its account's lock, one at a time.
+// The copy can therefore hold changes logged after the new segment began.
+// Replaying them again is harmless: registrations, sessions, reads and deletes
+// are no-ops when already done, and a send is skipped if the mailbox has had
+// that ID (MessageStore.restore).
+//
+// Layout: int magic, int version, int first log segment to replay, then the
+// shards, then the account table, then the table's position as a long. A
+// shard is int length, payload, int crc32 of the payload, and holds the
+// mailboxes of a run of accounts; shards are decoded in parallel at startup.
+public class Snapshot {
+    private static final int MAGIC = 0x4d534e50;
+    private static final int VERSION = 1;
+    private static final int HEADER = 12;
+    // a shard ends at the first account boundary past this size
+    private static final int SHARD_BYTES = 1024 * 1024;
+
+    // Writes a snapshot of the store to file and deletes the log segments it covers
+    public static void take(MessageStore store, WriteAheadLog log, File file) throws IOException {
+        long start = System.nanoTime();
+        int segment = log.rotate();
+        AccountDirectory accounts = store.getAccounts();
+        File tmp = new File(file.getPath() + ".tmp");
+        long length;
+        try (FileOutputStream fileOut = new FileOutputStream(tmp)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut, 64 * 1024));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(segment);
+
+            // mailboxes before the account table, so that every sender they
+            // name is in the table
+            int n = accounts.size();
+            ByteArrayOutputStream shard = new ByteArrayOutputStream(SHARD_BYTES + 64 * 1024);
+            DataOutputStream data = new DataOutputStream(shard);
+            int first = 0;
+            for (int i = 0; i < n; i++) {
+                writeMailbox(data, accounts.get(i).copyMailbox());
+                if (shard.size() >= SHARD_BYTES || i == n - 1) {
+                    writeShard(out, first, i + 1 - first, shard);
+                    shard.reset();
+                    first = i + 1;
+                }
+            }
+
+            out.flush();
+            long tableOffset = fileOut.getChannel().position();
+            long[][] tokens = accounts.sessionTokens();
+            out.writeInt(store.getLastMessageId());
+            out.writeInt(tokens.length);
+            for (int i = 0; i < tokens.length; i++) {
+                out.writeUTF(accounts.get(i).getUsername());
+                out.writeInt(tokens[i].length);
+                for (long token : tokens[i]) {
+                    out.writeLong(token);
+                }
+            }
+            out.writeLong(tableOffset);
+            out.flush();
+            fileOut.getFD().sync();
+            length = fileOut.getChannel().position();
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        log.deleteSegmentsBefore(segment);
+        store.getMetrics().snapshotTaken(System.nanoTime() - start, length);
+    }
+
+    // Loads a snapshot into an empty store, decoding shards on the given
+    // number of threads; returns the log segment to replay from
+    public static int load(File file, MessageStore store, int threads) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER);
+            ByteBuffer trailer = ByteBuffer.allocate(8);
+            channel.read(header, 0);
+            channel.read(trailer, channel.size() - 8);
+            header.flip();
+            trailer.flip();
+            if (header.remaining() < HEADER || header.getInt() != MAGIC || header.getInt() != VERSION
+                    || trailer.remaining() < 8) {
+                throw new IOException("Not a snapshot: " + file);
+            }
+            int segment = header.getInt();
+            long tableOffset = trailer.getLong();
+
+            channel.position(tableOffset);
+            DataInputStream table = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+            int lastMessageId = table.readInt();
+            int n = table.readInt();
+            for (int i = 0; i < n; i++) {
+                Account a = new Account(table.readUTF());
+                int sessions = table.readInt();
+                for (int s = 0; s < sessions; s++) {
+                    long token = table.readLong();
+                    if (s == 0) {
+                        store.register(a, token);
+                    } else {
+                        store.restoreSession(a, token);
+                    }
+                }
+                if (a.getId() != i) {
+                    throw new IOException("Snapshot " + file + " does not load into an empty store");
+                }
+            }
+
+            channel.position(HEADER);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel), 64 * 1024));
+            ThreadPoolExecutor decoders = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(threads), new ThreadPoolExecutor.CallerRunsPolicy());
+            List<Future<?>> decoded = new ArrayList<>();
+            try {
+                // a full queue makes this thread decode too, so only a few
+                // shards are in memory at once
+                for (long position = HEADER; position < tableOffset; ) {
+                    byte[] shard = readShard(in, file);
+                    position += 8 + shard.length;
+                    decoded.add(decoders.submit(() -> {
+                        readShard(shard, store);
+                        return null;
+                    }));
+                }
+                for (Future<?> f : decoded) {
+                    f.get();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while loading " + file, e);
+            } catch (ExecutionException e) {
+                throw new IOException("Snapshot " + file + " is corrupt", e.getCause());
+            } finally {
+                decoders.shutdownNow();
+            }
+            store.finishLoad(lastMessageId);
+            return segment;
+        }
+    }
+
+    private static void writeMailbox(DataOutputStream out, Mailbox m) throws IOException {
+        out.writeInt(m.lastId());
+        out.writeInt(m.size());
+        for (int slot = m.next(0); slot >= 0; slot = m.next(slot + 1)) {
+            out.writeInt(m.id(slot));
+            out.writeInt(m.sender(slot));
+            out.writeBoolean(m.isRead(slot));
+            WriteAheadLog.writeString(out, m.text(slot));
+        }
+    }
+
+    private static void writeShard(DataOutputStream out, int first, int count, ByteArrayOutputStream mailboxes)
+            throws IOException {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream(8 + mailboxes.size());
+        DataOutputStream data = new DataOutputStream(payload);
+        data.writeInt(first);
+        data.writeInt(count);
+        mailboxes.writeTo(data);
+        CRC32 crc = new CRC32();
+        crc.update(payload.toByteArray());
+        out.writeInt(payload.size());
+        payload.writeTo(out);
+        out.writeInt((int) crc.getValue());
+    }
+
+    private static byte[] readShard(DataInputStream in, File file) throws IOException {
+        try {
+            byte[] payload = new byte[in.readInt()];
+            in.readFully(payload);
+            CRC32 crc = new CRC32();
+            crc.update(payload);
+            if ((int) crc.getValue() != in.readInt()) {
+                throw new IOException("Snapshot " + file + " is corrupt");
+            }
+            return payload;
+        } catch (EOFException e) {
+            throw new IOException("Snapshot " + file + " is truncated", e);
+        }
+    }
+
+    private static void readShard(byte[] shard, MessageStore store) throws IOException {
+        AccountDirectory accounts = store.getAccounts();
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(shard));
+        int first = in.readInt();
+        int count = in.readInt();
+        for (int i = first; i < first + count; i++) {
+            Account receiver = accounts.get(i);
+            int lastId = in.readInt();
+            int size = in.readInt();
+            for (int m = 0; m < size; m++) {
+                int id = in.readInt();
+                Account sender = accounts.get(in.readInt());
+                boolean read = in.readBoolean();
+                store.load(sender, receiver, WriteAheadLog.readString(in), id, read);
+            }
+            receiver.restoreLastMessageId(lastId);
+        }
+    }
+}
@@ -0,0 +1,42 @@
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+
+// Open connections that asked (op 7) to be told about new mail, by username
+public class Subscriptions {
+
+    // A connection that can be sent events; called from the sender's thread
+    public interface Subscriber {
+        void deliver(Message message);
+    }
+
+    private final Map<String, Set<Subscriber>> byUsername = new ConcurrentHashMap<>();
+
+    public void subscribe(String username, Subscriber subscriber) {
+        byUsername.computeIfAbsent(username, u -> new CopyOnWriteArraySet<>()).add(subscriber);
+    }
+
+    public void unsubscribe(String username, Subscriber subscriber) {
+        Set<Subscriber> subscribers = byUsername.get(username);
+        if (subscribers != null) {
+            subscribers.remove(subscriber);
+        }
+    }
+
+    // Pushes the message to every open connection of its receiver
+    public void publish(Message message) {
+        Set<Subscriber> subscribers = byUsername.get(message.getReceiver());
+        if (subscribers == null) {
+            return;
+        }
+        for (Subscriber s : subscribers) {
+            try {
+                s.deliver(message);
+            } catch (RuntimeException e) {
+                // a broken connection must not fail the send
+                unsubscribe(message.getReceiver(), s);
+            }
+        }
+    }
+}
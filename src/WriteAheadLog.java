@@ -0,0 +1,446 @@
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.zip.CRC32;
+
+// Append-only binary log of every change to the MessageStore, replayed at startup.
+// Record layout: int length, byte type, payload, int crc32 of type and payload.
+// Writers append under a lock and then wait for a background flusher, so one
+// fsync covers every record appended while the previous one was running.
+//
+// The log is a series of segment files: the given file is segment 0 and
+// segment n is the file with ".n" appended. A snapshot starts a new segment
+// and names it, so the segments before it can be deleted once it is written.
+// Positions returned to writers count bytes over all segments.
+public class WriteAheadLog {
+    // registration with a 4-digit token, from logs written before session tokens; only replayed
+    static final byte REGISTER_INT_TOKEN = 1;
+    static final byte SEND = 2;
+    static final byte READ = 3;
+    static final byte DELETE = 4;
+    static final byte REGISTER = 5;
+    static final byte OPEN_SESSION = 6;
+    static final byte CLOSE_SESSION = 7;
+
+    // longest record payload; MessageStore.MAX_BODY keeps sends far below it
+    static final int MAX_RECORD = 16 * 1024 * 1024;
+
+    public enum SyncPolicy {
+        ALWAYS,   // reply after the record is on disk, fsync as soon as anything is pending
+        BATCH,    // reply after the record is on disk, wait a short window to gather more records
+        PERIODIC  // reply at once, fsync on a timer
+    }
+
+    private final File file;
+    private final SyncPolicy policy;
+    private final long intervalMs;
+    // held by the flusher while it syncs, so that rotate() never closes a
+    // segment under it
+    private final Object syncLock = new Object();
+    private FileChannel channel;
+    private int segment;
+    private long written;
+    private long synced;
+    private IOException failure;
+    // run by the flusher once their position is on disk, lowest position first
+    private final PriorityQueue<Callback> callbacks = new PriorityQueue<>();
+
+    // Appends to the given segment of the log
+    public WriteAheadLog(File file, int segment, SyncPolicy policy, long intervalMs) throws IOException {
+        this.file = file;
+        this.segment = segment;
+        this.channel = open(segmentFile(file, segment));
+        this.policy = policy;
+        this.intervalMs = intervalMs;
+        this.written = channel.size();
+        this.synced = written;
+        channel.position(written);
+        Thread flusher = new Thread(this::flushLoop, "wal-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    public static File segmentFile(File file, int segment) {
+        return segment == 0 ? file : new File(file.getPath() + "." + segment);
+    }
+
+    // Replays every complete record of the segments from the given one on into
+    // the store, and cuts off a torn tail. Returns the last segment there is.
+    public static int replay(File file, int fromSegment, MessageStore store) throws IOException {
+        int segment = fromSegment;
+        while (segmentFile(file, segment + 1).exists()) {
+            replaySegment(segmentFile(file, segment), store);
+            segment++;
+        }
+        replaySegment(segmentFile(file, segment), store);
+        return segment;
+    }
+
+    private static void replaySegment(File file, MessageStore store) throws IOException {
+        if (!file.exists()) {
+            return;
+        }
+        long good = 0;
+        try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            DataInputStream data = new DataInputStream(new BufferedInputStream(Channels.newInputStream(in)));
+            long size = in.size();
+            while (true) {
+                byte[] record = readRecord(data, size - good, file, good);
+                if (record == null) {
+                    break;
+                }
+                apply(record, store);
+                good += 8 + record.length;
+            }
+        }
+        try (FileChannel out = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+            if (out.size() > good) {
+                System.out.println("Write-ahead log: dropping " + (out.size() - good) + " bytes of incomplete record");
+                out.truncate(good);
+            }
+        }
+    }
+
+    // Syncs the current segment and starts appending to a new one; returns
+    // its number. Everything logged before the call is in earlier segments.
+    public int rotate() throws IOException {
+        List<Runnable> due;
+        synchronized (syncLock) {
+            synchronized (this) {
+                FileChannel next = open(segmentFile(file, segment + 1));
+                channel.force(false);
+                channel.close();
+                channel = next;
+                segment++;
+                synced = written;
+                notifyAll();
+                due = takeCallbacks();
+            }
+        }
+        run(due);
+        return segment;
+    }
+
+    // bytes appended so far, over all segments
+    public synchronized long position() {
+        return written;
+    }
+
+    // Deletes the segments before the given one, once a snapshot covers them
+    public void deleteSegmentsBefore(int segment) {
+        for (int i = segment - 1; i >= 0; i--) {
+            File f = segmentFile(file, i);
+            if (f.exists() && !f.delete()) {
+                System.out.println("Write-ahead log: could not delete " + f);
+            }
+        }
+    }
+
+    private static FileChannel open(File file) throws IOException {
+        return FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    public long logRegister(String username, long token) throws IOException {
+        Record r = new Record(REGISTER);
+        r.data.writeUTF(username);
+        r.data.writeLong(token);
+        return append(r);
+    }
+
+    public long logOpenSession(String username, long token) throws IOException {
+        Record r = new Record(OPEN_SESSION);
+        r.data.writeUTF(username);
+        r.data.writeLong(token);
+        return append(r);
+    }
+
+    public long logCloseSession(long token) throws IOException {
+        Record r = new Record(CLOSE_SESSION);
+        r.data.writeLong(token);
+        return append(r);
+    }
+
+    public long logSend(Message m) throws IOException {
+        Record r = new Record(SEND);
+        r.data.writeInt(m.getMessageID());
+        r.data.writeUTF(m.getSender());
+        r.data.writeUTF(m.getReceiver());
+        writeString(r.data, m.getBody());
+        return append(r);
+    }
+
+    public long logRead(String username, int messageId) throws IOException {
+        Record r = new Record(READ);
+        r.data.writeUTF(username);
+        r.data.writeInt(messageId);
+        return append(r);
+    }
+
+    public long logDelete(String username, int messageId) throws IOException {
+        Record r = new Record(DELETE);
+        r.data.writeUTF(username);
+        r.data.writeInt(messageId);
+        return append(r);
+    }
+
+    // Blocks until the record ending at position lsn is on disk, unless the policy is PERIODIC
+    public void awaitDurable(long lsn) throws IOException {
+        if (policy == SyncPolicy.PERIODIC) {
+            return;
+        }
+        synchronized (this) {
+            while (synced < lsn && failure == null) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while waiting for the log", e);
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        }
+    }
+
+    // Runs callback once the record ending at position lsn is on disk, or the
+    // log has failed, on the flusher's thread; for threads that must not block
+    // in awaitDurable. Returns false without registering it if the record is
+    // already durable, as it always is under PERIODIC.
+    public synchronized boolean whenDurable(long lsn, Runnable callback) throws IOException {
+        if (failure != null) {
+            throw failure;
+        }
+        if (policy == SyncPolicy.PERIODIC || synced >= lsn) {
+            return false;
+        }
+        callbacks.add(new Callback(lsn, callback));
+        return true;
+    }
+
+    public synchronized boolean isDurable(long lsn) throws IOException {
+        if (failure != null) {
+            throw failure;
+        }
+        return policy == SyncPolicy.PERIODIC || synced >= lsn;
+    }
+
+    // caller holds this log's lock; the callbacks are run after releasing it
+    private List<Runnable> takeCallbacks() {
+        List<Runnable> due = new ArrayList<>();
+        while (!callbacks.isEmpty() && (failure != null || callbacks.peek().lsn <= synced)) {
+            due.add(callbacks.poll().callback);
+        }
+        return due;
+    }
+
+    private static void run(List<Runnable> due) {
+        for (Runnable r : due) {
+            r.run();
+        }
+    }
+
+    private synchronized long append(Record r) throws IOException {
+        byte[] payload = r.bytes.toByteArray();
+        if (payload.length > MAX_RECORD) {
+            // replay could not read it back
+            throw new IOException("Log record of " + payload.length + " bytes is too large");
+        }
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        ByteBuffer buf = ByteBuffer.allocate(8 + payload.length);
+        buf.putInt(payload.length).put(payload).putInt((int) crc.getValue());
+        buf.flip();
+        while (buf.hasRemaining()) {
+            channel.write(buf);
+        }
+        written += 8 + payload.length;
+        notifyAll();
+        return written;
+    }
+
+    private void flushLoop() {
+        while (true) {
+            try {
+                long target;
+                synchronized (this) {
+                    if (policy == SyncPolicy.PERIODIC) {
+                        wait(intervalMs);
+                    } else {
+                        while (written == synced) {
+                            wait();
+                        }
+                    }
+                    target = written;
+                }
+                if (policy == SyncPolicy.BATCH) {
+                    Thread.sleep(intervalMs);
+                    synchronized (this) {
+                        target = written;
+                    }
+                }
+                synchronized (syncLock) {
+                    FileChannel current;
+                    synchronized (this) {
+                        // rotate() may have synced it meanwhile
+                        if (target <= synced) {
+                            continue;
+                        }
+                        current = channel;
+                    }
+                    current.force(false);
+                }
+                List<Runnable> due;
+                synchronized (this) {
+                    synced = Math.max(synced, target);
+                    notifyAll();
+                    due = takeCallbacks();
+                }
+                run(due);
+            } catch (IOException e) {
+                List<Runnable> due;
+                synchronized (this) {
+                    failure = e;
+                    notifyAll();
+                    due = takeCallbacks();
+                }
+                run(due);
+                e.printStackTrace();
+                return;
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    // Returns the next record, or null at the end of the log or at a torn
+    // tail. A length that cannot be right although the file goes on past it
+    // is corruption, not a torn write, and truncating there would drop every
+    // record after it.
+    private static byte[] readRecord(DataInputStream in, long remaining, File file, long position)
+            throws IOException {
+        int length;
+        try {
+            length = in.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+        if (length <= 0) {
+            return null;
+        }
+        if (length > MAX_RECORD) {
+            if (8L + length <= remaining) {
+                throw new IOException("Write-ahead log " + file + " has a record of " + length
+                        + " bytes at " + position + ", over the limit of " + MAX_RECORD);
+            }
+            return null;
+        }
+        byte[] payload = new byte[length];
+        try {
+            in.readFully(payload);
+            int expected = in.readInt();
+            CRC32 crc = new CRC32();
+            crc.update(payload);
+            if ((int) crc.getValue() != expected) {
+                return null;
+            }
+        } catch (EOFException e) {
+            return null;
+        }
+        return payload;
+    }
+
+    private static void apply(byte[] record, MessageStore store) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(record, 1, record.length - 1));
+        switch (record[0]) {
+            case REGISTER_INT_TOKEN:
+                store.register(new Account(in.readUTF()), in.readInt());
+                break;
+            case REGISTER:
+                store.register(new Account(in.readUTF()), in.readLong());
+                break;
+            case OPEN_SESSION: {
+                Account a = store.getAccounts().getByUsername(in.readUTF());
+                if (a != null) {
+                    store.restoreSession(a, in.readLong());
+                }
+                break;
+            }
+            case CLOSE_SESSION:
+                store.closeSession(in.readLong());
+                break;
+            case SEND: {
+                int id = in.readInt();
+                String sender = in.readUTF();
+                String receiver = in.readUTF();
+                store.restore(sender, receiver, readString(in), id);
+                break;
+            }
+            case READ: {
+                Account a = store.getAccounts().getByUsername(in.readUTF());
+                if (a != null) {
+                    store.read(a, in.readInt());
+                }
+                break;
+            }
+            case DELETE: {
+                Account a = store.getAccounts().getByUsername(in.readUTF());
+                if (a != null) {
+                    store.delete(a, in.readInt());
+                }
+                break;
+            }
+            default:
+                throw new IOException("Unknown log record type " + record[0]);
+        }
+    }
+
+    static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static class Record {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        final DataOutputStream data = new DataOutputStream(bytes);
+
+        Record(byte type) throws IOException {
+            data.writeByte(type);
+        }
+    }
+
+    private static class Callback implements Comparable<Callback> {
+        final long lsn;
+        final Runnable callback;
+
+        Callback(long lsn, Runnable callback) {
+            this.lsn = lsn;
+            this.callback = callback;
+        }
+
+        public int compareTo(Callback other) {
+            return Long.compare(lsn, other.lsn);
+        }
+    }
+}